@@ -79,10 +79,7 @@ public final class ArchiveBundle {
      * @param payload The byte array payload of the archive.
      */
     public void put(int index, String name, byte[] payload) throws IOException {
-        int nameHash = 0;
-        name = name.toUpperCase();
-        for(int j = 0; j < name.length(); j++)
-            nameHash = (nameHash * 61 + name.charAt(j)) - 32;    
+        int nameHash = ArchivePackage.hash(name);
         if(!isCompressed) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(os);
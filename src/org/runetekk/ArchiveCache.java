@@ -0,0 +1,428 @@
+package org.runetekk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ArchiveCache.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * A cache of the archives read through the indexes of a {@link FileStore},
+ * keyed by the index id and the archive id. An archive is cached either as
+ * its source byte array or as a parsed {@link ArchivePackage}. The cache is
+ * bounded by the total weight of the archives and evicts with a segmented
+ * LRU policy, archives enter a probationary segment and are promoted to a
+ * protected segment once they are hit again so that archives which are read
+ * often survive a burst of archives that are only read once. Cached values
+ * are shared between all callers and must not be modified, cached packages
+ * are unpacked before they are shared so that reading them from any amount
+ * of threads at once is safe.
+ */
+public final class ArchiveCache {
+    
+    /**
+     * The bit set in the key of a cached {@link ArchivePackage}.
+     */
+    private static final long PACKAGE = 1L << 40;
+    
+    /**
+     * The amount of the maximum weight that the protected segment may hold,
+     * out of 100.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+    
+    /**
+     * The weight added to every cached archive for its bookkeeping.
+     */
+    private static final int ENTRY_WEIGHT = 64;
+    
+    /**
+     * A cached archive.
+     */
+    private static final class Entry {
+        
+        /**
+         * The cached source byte array or {@link ArchivePackage}.
+         */
+        private Object value;
+        
+        /**
+         * The weight of the archive.
+         */
+        private int weight;
+        
+        /**
+         * If the archive is in the protected segment.
+         */
+        private boolean promoted;
+        
+        /**
+         * Constructs a new {@link Entry};
+         * @param value The cached value.
+         * @param weight The weight of the archive.
+         */
+        private Entry(Object value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+    
+    /**
+     * A read of an archive that is not cached, shared by all the concurrent
+     * requests for the archive.
+     */
+    private static final class Flight {
+        
+        /**
+         * The loaded value or null if it could not be loaded.
+         */
+        private Object value;
+        
+        /**
+         * If the flight has landed.
+         */
+        private boolean done;
+        
+        /**
+         * If the archive was written while the flight was in the air.
+         */
+        private boolean stale;
+        
+        /**
+         * Waits for the flight to land.
+         * @return The loaded value.
+         */
+        private synchronized Object await() {
+            boolean interrupted = false;
+            while(!done) {
+                try {
+                    wait();
+                } catch(InterruptedException iex) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+            return value;
+        }
+    }
+    
+    /**
+     * The {@link FileStore} the cached archives are read from.
+     */
+    private FileStore store;
+    
+    /**
+     * The archives in the probationary segment from least to most recently
+     * used.
+     */
+    private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<Long, Entry>();
+    
+    /**
+     * The archives in the protected segment from least to most recently used.
+     */
+    private final LinkedHashMap<Long, Entry> protection = new LinkedHashMap<Long, Entry>();
+    
+    /**
+     * The flights that are in the air by the key of the loaded value.
+     */
+    private final HashMap<Long, Flight> flights = new HashMap<Long, Flight>();
+    
+    /**
+     * The maximum total weight of the cached archives.
+     */
+    private long maximumWeight;
+    
+    /**
+     * The maximum total weight of the protected segment.
+     */
+    private long maximumProtected;
+    
+    /**
+     * The total weight of the cached archives.
+     */
+    private long weight;
+    
+    /**
+     * The total weight of the protected segment.
+     */
+    private long protectedWeight;
+    
+    /**
+     * The amount of lookups that were served from the cache.
+     */
+    private long hits;
+    
+    /**
+     * The amount of lookups that had to read the archive.
+     */
+    private long misses;
+    
+    /**
+     * The amount of misses that waited for a flight instead of reading.
+     */
+    private long coalesced;
+    
+    /**
+     * Gets the source byte array of an archive, the archive is read from the
+     * index and cached if it is not cached. Concurrent requests for the same
+     * archive that is not cached share a single read.
+     * @param index The {@link FileIndex} to read the archive from.
+     * @param id The archive id.
+     * @return The shared source byte array or null if the archive could not
+     *         be read, see {@link FileIndex#get(int)}.
+     */
+    public byte[] get(FileIndex index, int id) {
+        return (byte[]) load(index, id, key(index, id));
+    }
+    
+    /**
+     * Gets the parsed {@link ArchivePackage} of an archive, the archive is
+     * read from the index, parsed, unpacked and cached if it is not cached.
+     * Concurrent requests for the same package that is not cached share a
+     * single read and parse. The package is already unpacked, see
+     * {@link ArchivePackage#unpack()}, so unpacking it again has no effect.
+     * @param index The {@link FileIndex} to read the archive from.
+     * @param id The archive id.
+     * @return The shared package or null if the archive could not be read,
+     *         parsed or unpacked.
+     */
+    public ArchivePackage getPackage(FileIndex index, int id) {
+        return (ArchivePackage) load(index, id, key(index, id) | PACKAGE);
+    }
+    
+    /**
+     * Gets a cached value or loads it. The first request that misses starts
+     * a flight that reads the archive, requests for the same key that miss
+     * while the flight is in the air wait for its result instead of reading
+     * the archive again.
+     * @param index The {@link FileIndex} to read the archive from.
+     * @param id The archive id.
+     * @param key The key of the value.
+     * @return The value or null if it could not be loaded.
+     */
+    private Object load(FileIndex index, int id, long key) {
+        Flight flight;
+        boolean leader = false;
+        synchronized(this) {
+            Object value = lookup(key);
+            if(value != null)
+                return value;
+            flight = flights.get(key);
+            if(flight != null)
+                coalesced++;
+            else {
+                flight = new Flight();
+                flights.put(key, flight);
+                leader = true;
+            }
+        }
+        if(!leader)
+            return flight.await();
+        Object value = null;
+        int size = 0;
+        try {
+            byte[] src = index.get(id);
+            if(src != null && (key & PACKAGE) != 0L) {
+                ArchivePackage archivePackage = new ArchivePackage(src);
+                archivePackage.unpack();
+                size = archivePackage.weight();
+                value = archivePackage;
+            } else if(src != null) {
+                size = src.length;
+                value = src;
+            }
+        } catch(IOException ioex) {
+        } catch(RuntimeException rex) {
+        } finally {
+            land(key, flight, value, size);
+        }
+        return value;
+    }
+    
+    /**
+     * Ends a flight, the loaded value is cached unless the archive was
+     * written while the flight was in the air and the waiting requests are
+     * handed the value.
+     * @param key The key of the value.
+     * @param flight The flight.
+     * @param value The loaded value or null if it could not be loaded.
+     * @param size The size of the loaded value.
+     */
+    private void land(long key, Flight flight, Object value, int size) {
+        synchronized(this) {
+            if(flights.get(key) == flight)
+                flights.remove(key);
+            if(value != null && !flight.stale)
+                insert(key, value, size);
+        }
+        synchronized(flight) {
+            flight.value = value;
+            flight.done = true;
+            flight.notifyAll();
+        }
+    }
+    
+    /**
+     * Removes an archive from the cache after it was written. A flight for
+     * the archive that is in the air is marked stale so that the value it
+     * read before the write is never cached, requests made after this call
+     * start a new flight.
+     * @param indexId The index id.
+     * @param id The archive id.
+     */
+    synchronized void invalidate(int indexId, int id) {
+        long key = (long) indexId << 32 | (id & 0xffffffffL);
+        remove(key);
+        remove(key | PACKAGE);
+        Flight flight = flights.remove(key);
+        if(flight != null)
+            flight.stale = true;
+        flight = flights.remove(key | PACKAGE);
+        if(flight != null)
+            flight.stale = true;
+    }
+    
+    /**
+     * Removes every archive from the cache.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protection.clear();
+        weight = 0L;
+        protectedWeight = 0L;
+    }
+    
+    /**
+     * Looks up a cached archive, an archive that is hit in the probationary
+     * segment is promoted to the protected segment.
+     * @param key The key of the archive.
+     * @return The cached value or null if the archive is not cached.
+     */
+    private synchronized Object lookup(long key) {
+        Entry entry = protection.remove(key);
+        if(entry != null) {
+            protection.put(key, entry);
+            hits++;
+            return entry.value;
+        }
+        entry = probation.remove(key);
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        entry.promoted = true;
+        protection.put(key, entry);
+        protectedWeight += entry.weight;
+        while(protectedWeight > maximumProtected && protection.size() > 1) {
+            Iterator<Map.Entry<Long, Entry>> iterator = protection.entrySet().iterator();
+            Map.Entry<Long, Entry> eldest = iterator.next();
+            iterator.remove();
+            eldest.getValue().promoted = false;
+            protectedWeight -= eldest.getValue().weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+        hits++;
+        return entry.value;
+    }
+    
+    /**
+     * Inserts an archive into the probationary segment, the least recently
+     * used archives are evicted until the cache fits its maximum weight.
+     * @param key The key of the archive.
+     * @param value The value to cache.
+     * @param size The size of the archive in bytes.
+     */
+    private synchronized void insert(long key, Object value, int size) {
+        Entry entry = new Entry(value, size + ENTRY_WEIGHT);
+        if(entry.weight > maximumWeight)
+            return;
+        remove(key);
+        probation.put(key, entry);
+        weight += entry.weight;
+        while(weight > maximumWeight) {
+            LinkedHashMap<Long, Entry> segment = probation.isEmpty() ? protection : probation;
+            Iterator<Entry> iterator = segment.values().iterator();
+            Entry eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.weight;
+            if(eldest.promoted)
+                protectedWeight -= eldest.weight;
+        }
+    }
+    
+    /**
+     * Removes a cached archive.
+     * @param key The key of the archive.
+     */
+    private void remove(long key) {
+        Entry entry = probation.remove(key);
+        if(entry == null) {
+            entry = protection.remove(key);
+            if(entry == null)
+                return;
+            protectedWeight -= entry.weight;
+        }
+        weight -= entry.weight;
+    }
+    
+    /**
+     * Gets the key of an archive.
+     * @param index The {@link FileIndex} the archive belongs to.
+     * @param id The archive id.
+     * @return The key.
+     */
+    private long key(FileIndex index, int id) {
+        if(index.getStore() != store)
+            throw new IllegalArgumentException("the index does not belong to the store of this cache");
+        return (long) index.getIndexId() << 32 | (id & 0xffffffffL);
+    }
+    
+    /**
+     * Gets the amount of lookups that were served from the cache.
+     * @return The amount of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Gets the amount of lookups that had to read the archive.
+     * @return The amount of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Gets the amount of misses that shared the read of a concurrent miss
+     * instead of reading the archive.
+     * @return The amount of coalesced misses.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+    
+    /**
+     * Gets the total weight of the cached archives.
+     * @return The weight in bytes.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+    
+    /**
+     * Constructs a new {@link ArchiveCache};
+     * @param store The {@link FileStore} the cached archives are read from.
+     * @param maximumWeight The maximum total weight of the cached archives.
+     */
+    ArchiveCache(FileStore store, long maximumWeight) {
+        this.store = store;
+        this.maximumWeight = maximumWeight;
+        this.maximumProtected = maximumWeight * PROTECTED_PERCENT / 100L;
+    }
+}
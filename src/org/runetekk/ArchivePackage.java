@@ -5,6 +5,14 @@ import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * ArchivePackage.java
@@ -16,6 +24,13 @@ import java.io.IOException;
  */
 public final class ArchivePackage {
     
+    /**
+     * The amount of compressed entry bytes below which a package is unpacked
+     * on the calling thread by {@link #unpack(Executor)}, since handing the
+     * entries of a small package to other threads costs more than it saves.
+     */
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+    
     /**
      * Option on if each archive entry in this package is compressed or the
      * entire archive is compressed. If true then the entire archive
@@ -58,11 +73,41 @@ public final class ArchivePackage {
      */
     private int[] archiveOffsets;
     
+    /**
+     * The lazily decompressed entries, each slot holds the decompressed byte
+     * array, a {@link SoftReference} to it or null if the entry was not
+     * decompressed yet. Only used after {@link #unpackLazily(boolean)}.
+     */
+    private volatile AtomicReferenceArray<Object> lazyEntries;
+    
+    /**
+     * The lock of each lazily decompressed entry.
+     */
+    private Object[] lazyLocks;
+    
+    /**
+     * If lazily decompressed entries are held through soft references.
+     */
+    private boolean softEntries;
+    
+    /**
+     * The open addressing table from name hashes to entries, each position
+     * holds the entry plus one or zero if the position is empty.
+     */
+    private int[] hashTable;
+    
+    /**
+     * The mask for the positions of the hash table.
+     */
+    private int hashMask;
+    
     /**
      * Initializes this {@link ArchivePackage}.
      * @param src The byte array source.
      */
     public void initialize(byte[] src) throws IOException {
+        lazyEntries = null;
+        lazyLocks = null;
         int uSize = ((src[0] & 0xFF) << 16) | 
                     ((src[1] & 0xFF) << 8)  | 
                      (src[2] & 0xFF);
@@ -101,6 +146,89 @@ public final class ArchivePackage {
             archiveOffsets[i] = offset;
             offset += cSizes[i];
         }
+        int tableSize = Integer.highestOneBit(amountEntries) << 2;
+        if(tableSize == 0)
+            tableSize = 1;
+        hashTable = new int[tableSize];
+        hashMask = tableSize - 1;
+        for(int i = 0; i < amountEntries; i++) {
+            int position = position(nameHashes[i]);
+            while(hashTable[position] != 0) {
+                if(nameHashes[hashTable[position] - 1] == nameHashes[i])
+                    break;
+                position = (position + 1) & hashMask;
+            }
+            if(hashTable[position] == 0)
+                hashTable[position] = i + 1;
+        }
+    }
+    
+    /**
+     * Gets the home position of a name hash in the hash table.
+     * @param nameHash The name hash.
+     * @return The position.
+     */
+    private int position(int nameHash) {
+        int hash = nameHash * 0x9e3779b9;
+        return (hash ^ hash >>> 16) & hashMask;
+    }
+    
+    /**
+     * Hashes the name of an archive. The name is hashed as if it were upper
+     * cased, names that only hold ASCII characters are hashed without
+     * creating an upper cased copy so names can be hashed without allocating.
+     * @param name The name of the archive.
+     * @return The name hash.
+     */
+    public static int hash(String name) {
+        int nameHash = 0;
+        for(int i = 0; i < name.length(); i++) {
+            int c = name.charAt(i);
+            if(c >= 0x80)
+                return hashUpperCase(name.toUpperCase());
+            if(c >= 'a' && c <= 'z')
+                c -= 'a' - 'A';
+            nameHash = (nameHash * 61 + c) - 32;
+        }
+        return nameHash;
+    }
+    
+    /**
+     * Hashes an upper cased name of an archive.
+     * @param name The upper cased name.
+     * @return The name hash.
+     */
+    private static int hashUpperCase(String name) {
+        int nameHash = 0;
+        for(int i = 0; i < name.length(); i++)
+            nameHash = (nameHash * 61 + name.charAt(i)) - 32;
+        return nameHash;
+    }
+    
+    /**
+     * Finds the entry of a name hash, when more than one entry has the name
+     * hash the first entry is found.
+     * @param nameHash The name hash, see {@link #hash(String)}.
+     * @return The entry or -1 if no entry has the name hash.
+     */
+    public int indexOf(int nameHash) {
+        int position = position(nameHash);
+        int entry;
+        while((entry = hashTable[position]) != 0) {
+            if(nameHashes[entry - 1] == nameHash)
+                return entry - 1;
+            position = (position + 1) & hashMask;
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets if this {@link ArchivePackage} holds an archive.
+     * @param nameHash The name hash of the archive, see {@link #hash(String)}.
+     * @return If an entry has the name hash.
+     */
+    public boolean contains(int nameHash) {
+        return indexOf(nameHash) != -1;
     }
     
     /**
@@ -109,49 +237,135 @@ public final class ArchivePackage {
      * @return The archive source array.
      */
     public byte[] getArchive(String name) {
+        return getArchive(hash(name));
+    }
+    
+    /**
+     * Gets an archive from this {@link ArchivePackage} by the hash of its
+     * name, callers that look up the same archives often can hash the names
+     * once with {@link #hash(String)}.
+     * @param nameHash The name hash of the archive.
+     * @return The archive source array or null if no entry has the name hash.
+     */
+    public byte[] getArchive(int nameHash) {
         try {
-            int nameHash = 0;
-            name = name.toUpperCase();
-            for(int j = 0; j < name.length(); j++)
-                nameHash = (nameHash * 61 + name.charAt(j)) - 32;
-            for(int i = 0; i < amountEntries; i++) {
-                if(nameHashes[i] == nameHash) {
-                    byte[] src = null;
-                    if(entryData != null) {
-                        src = new byte[entryData[i].length];
-                        System.arraycopy(entryData[i], 0, src, 0, entryData[i].length);
-                    } else {
-                        src = new byte[uSizes[i]];
-                        if(isCompressed) {
-                            System.arraycopy(archiveData, archiveOffsets[i], src, 0, uSizes[i]);
-                        } else {
-                            DataInputStream is = new DataInputStream(new BZip2CompressorInputStream(new ByteArrayInputStream(archiveData, archiveOffsets[i], cSizes[i])));
-                            is.readFully(src);
-                        }
-                    }
-                    return src;
-                }
+            int i = indexOf(nameHash);
+            if(i != -1) {
+                byte[] src = null;
+                if(entryData != null) {
+                    src = new byte[entryData[i].length];
+                    System.arraycopy(entryData[i], 0, src, 0, entryData[i].length);
+                } else if(isCompressed) {
+                    src = new byte[uSizes[i]];
+                    System.arraycopy(archiveData, archiveOffsets[i], src, 0, uSizes[i]);
+                } else
+                    src = entry(i).clone();
+                return src;
             }
         } catch(IOException ioex) {}
         return null;
     }
     
+    /**
+     * Gets a read only view of an archive from this {@link ArchivePackage}.
+     * @param name The name of the archive.
+     * @return The view or null if no entry has the name.
+     */
+    public ByteBuffer getArchiveView(String name) {
+        return getArchiveView(hash(name));
+    }
+    
+    /**
+     * Gets a read only view of an archive from this {@link ArchivePackage}
+     * by the hash of its name. When the entire package is compressed or the
+     * package was unpacked the view is a slice of the unpacked data and the
+     * archive is not copied, an individually compressed archive is
+     * decompressed into a new array that the view wraps or, after
+     * {@link #unpackLazily(boolean)}, the view wraps the memoized entry.
+     * @param nameHash The name hash of the archive, see {@link #hash(String)}.
+     * @return The view or null if no entry has the name hash or the archive
+     *         could not be decompressed.
+     */
+    public ByteBuffer getArchiveView(int nameHash) {
+        try {
+            int i = indexOf(nameHash);
+            if(i == -1)
+                return null;
+            if(entryData != null)
+                return ByteBuffer.wrap(entryData[i]).asReadOnlyBuffer();
+            if(isCompressed)
+                return ByteBuffer.wrap(archiveData, archiveOffsets[i], uSizes[i]).slice().asReadOnlyBuffer();
+            return ByteBuffer.wrap(entry(i)).asReadOnlyBuffer();
+        } catch(IOException ioex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Gets an individually compressed entry, the entry is decompressed unless
+     * it was memoized by {@link #unpackLazily(boolean)}.
+     * @param i The entry.
+     * @return The decompressed archive, which is shared when it is memoized.
+     */
+    private byte[] entry(int i) throws IOException {
+        AtomicReferenceArray<Object> lazyEntries = this.lazyEntries;
+        if(lazyEntries == null)
+            return decompress(i);
+        byte[] src = unwrap(lazyEntries.get(i));
+        if(src != null)
+            return src;
+        synchronized(lazyLocks[i]) {
+            src = unwrap(lazyEntries.get(i));
+            if(src == null) {
+                src = decompress(i);
+                lazyEntries.set(i, softEntries ? new SoftReference<byte[]>(src) : src);
+            }
+            return src;
+        }
+    }
+    
+    /**
+     * Gets the byte array held in a lazily decompressed entry slot.
+     * @param slot The slot.
+     * @return The byte array or null if the slot is empty or its
+     *         {@link SoftReference} was cleared.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] unwrap(Object slot) {
+        if(slot instanceof SoftReference)
+            return ((SoftReference<byte[]>) slot).get();
+        return (byte[]) slot;
+    }
+    
+    /**
+     * Decompresses an individually compressed entry.
+     * @param i The entry.
+     * @return The decompressed archive.
+     */
+    private byte[] decompress(int i) throws IOException {
+        byte[] src = new byte[uSizes[i]];
+        DataInputStream is = new DataInputStream(new BZip2CompressorInputStream(new ByteArrayInputStream(archiveData, archiveOffsets[i], cSizes[i])));
+        is.readFully(src);
+        is.close();
+        return src;
+    }
+    
     /**
      * Unpacks all the entries and caches them.
      */
     public void unpack() throws IOException {
         if(entryData == null) {
-            entryData = new byte[amountEntries][];
+            byte[][] unpacked = new byte[amountEntries][];
             for(int i = 0; i < amountEntries; i++) {
-                entryData[i] = new byte[uSizes[i]];
                 if(isCompressed) {
-                    System.arraycopy(archiveData, archiveOffsets[i], entryData[i], 0, uSizes[i]);
-                } else {
-                    DataInputStream is = new DataInputStream(new BZip2CompressorInputStream(new ByteArrayInputStream(archiveData, archiveOffsets[i], cSizes[i])));
-                    is.readFully(entryData[i]);
-                    is.close();
-                }
+                    unpacked[i] = new byte[uSizes[i]];
+                    System.arraycopy(archiveData, archiveOffsets[i], unpacked[i], 0, uSizes[i]);
+                } else
+                    unpacked[i] = entry(i);
             }
+            entryData = unpacked;
+            lazyEntries = null;
+            lazyLocks = null;
             archiveData = null;
             archiveOffsets = null;
             uSizes = null;
@@ -159,15 +373,127 @@ public final class ArchivePackage {
         }
     }
     
+    /**
+     * Unpacks all the entries and caches them, individually compressed
+     * entries are decompressed in parallel by tasks run on an executor. The
+     * calling thread decompresses entries as well so the entries are always
+     * unpacked even if the executor is busy or rejects the tasks. A package
+     * whose entire data is compressed, that has a single entry or whose
+     * entries add up to less than {@link #PARALLEL_THRESHOLD} compressed bytes
+     * is unpacked on the calling thread, see {@link #unpack()}.
+     * @param executor The executor to run the tasks on.
+     */
+    public void unpack(Executor executor) throws IOException {
+        if(entryData != null)
+            return;
+        int amountTasks = Math.min(amountEntries, Runtime.getRuntime().availableProcessors()) - 1;
+        long compressedSize = 0L;
+        for(int i = 0; !isCompressed && i < amountEntries; i++)
+            compressedSize += cSizes[i];
+        if(isCompressed || amountTasks <= 0 || compressedSize < PARALLEL_THRESHOLD) {
+            unpack();
+            return;
+        }
+        final byte[][] unpacked = new byte[amountEntries][];
+        final AtomicInteger nextEntry = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(amountEntries);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while((i = nextEntry.getAndIncrement()) < amountEntries) {
+                    try {
+                        if(failure.get() == null)
+                            unpacked[i] = entry(i);
+                    } catch(IOException ioex) {
+                        failure.compareAndSet(null, ioex);
+                    } catch(RuntimeException rex) {
+                        failure.compareAndSet(null, new IOException(rex));
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }
+        };
+        try {
+            for(int i = 0; i < amountTasks; i++)
+                executor.execute(task);
+        } catch(RejectedExecutionException reex) {}
+        task.run();
+        try {
+            latch.await();
+        } catch(InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while unpacking");
+        }
+        if(failure.get() != null)
+            throw failure.get();
+        entryData = unpacked;
+        lazyEntries = null;
+        lazyLocks = null;
+        archiveData = null;
+        archiveOffsets = null;
+        uSizes = null;
+        cSizes = null;
+    }
+    
+    /**
+     * Switches this {@link ArchivePackage} to decompress each individually
+     * compressed entry the first time it is read and to memoize it, so only
+     * the entries that are read are decompressed and each of them only once.
+     * Entries may be read from any amount of threads at once. Has no effect
+     * when the entire package is compressed or it was unpacked.
+     * @param soft If the memoized entries are held through soft references
+     *             so that they can be reclaimed when memory runs low and
+     *             decompressed again on their next read.
+     */
+    public void unpackLazily(boolean soft) {
+        if(isCompressed || entryData != null || lazyEntries != null)
+            return;
+        Object[] lazyLocks = new Object[amountEntries];
+        for(int i = 0; i < amountEntries; i++)
+            lazyLocks[i] = new Object();
+        this.lazyLocks = lazyLocks;
+        softEntries = soft;
+        lazyEntries = new AtomicReferenceArray<Object>(amountEntries);
+    }
+    
+    /**
+     * Estimates the amount of memory held by this {@link ArchivePackage}.
+     * @return The weight in bytes.
+     */
+    int weight() {
+        int weight = amountEntries * 16 + hashTable.length * 4;
+        if(archiveData != null)
+            weight += archiveData.length;
+        if(entryData != null) {
+            for(int i = 0; i < entryData.length; i++)
+                weight += entryData[i].length;
+        }
+        AtomicReferenceArray<Object> lazyEntries = this.lazyEntries;
+        if(lazyEntries != null && !softEntries) {
+            for(int i = 0; i < amountEntries; i++) {
+                byte[] src = unwrap(lazyEntries.get(i));
+                if(src != null)
+                    weight += src.length;
+            }
+        }
+        return weight;
+    }
+    
     /**
      * Destroys this {@link ArchivePackage}.
      * This {@link ArchivePackage} will be usable after it is re-initialized.
      */
     public void destroy() {
         entryData = null;
+        lazyEntries = null;
+        lazyLocks = null;
         archiveData = null;
         archiveOffsets = null;
         nameHashes = null;
+        hashTable = null;
         cSizes = null;
         uSizes = null;
     }
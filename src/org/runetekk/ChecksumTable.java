@@ -0,0 +1,285 @@
+package org.runetekk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * ChecksumTable.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * The CRC32 and version of every archive of a {@link FileIndex}, kept in a
+ * file next to the index file so that the tables an update server sends do
+ * not have to be computed by reading every archive on startup. The version
+ * of an archive is incremented every time it is written. Every write updates
+ * the table in memory and writes its entry through to the file. The file is
+ * marked clean when the index is destroyed and dirty when it is opened, a
+ * table that was not marked clean has its checksums recomputed in parallel
+ * and keeps its versions, an archive whose checksum changed gets a new
+ * version.
+ */
+public final class ChecksumTable {
+    
+    /**
+     * The magic number at the start of the table file.
+     */
+    private static final int MAGIC = 0x43524354;
+    
+    /**
+     * The size of the header of the table file.
+     */
+    private static final int HEADER_SIZE = 8;
+    
+    /**
+     * The {@link FileIndex} the checksums are of.
+     */
+    private FileIndex index;
+    
+    /**
+     * The {@link RandomAccessFile} for the table file.
+     */
+    private RandomAccessFile file;
+    
+    /**
+     * The {@link FileChannel} of the table file.
+     */
+    private FileChannel channel;
+    
+    /**
+     * The checksums by archive id.
+     */
+    private volatile int[] checksums = new int[0];
+    
+    /**
+     * The versions by archive id.
+     */
+    private volatile int[] versions = new int[0];
+    
+    /**
+     * Gets the CRC32 of an archive.
+     * @param id The archive id.
+     * @return The checksum or zero if the archive does not exist.
+     */
+    public int getChecksum(int id) {
+        int[] checksums = this.checksums;
+        return id < 0 || id >= checksums.length ? 0 : checksums[id];
+    }
+    
+    /**
+     * Gets the version of an archive.
+     * @param id The archive id.
+     * @return The version or zero if the archive was never written.
+     */
+    public int getVersion(int id) {
+        int[] versions = this.versions;
+        return id < 0 || id >= versions.length ? 0 : versions[id];
+    }
+    
+    /**
+     * Gets a copy of the checksums of every archive.
+     * @return The checksums by archive id.
+     */
+    public synchronized int[] getChecksums() {
+        return checksums.clone();
+    }
+    
+    /**
+     * Gets a copy of the versions of every archive.
+     * @return The versions by archive id.
+     */
+    public synchronized int[] getVersions() {
+        return versions.clone();
+    }
+    
+    /**
+     * Updates the entry of an archive that was written.
+     * @param id The archive id.
+     * @param checksum The CRC32 of the archive.
+     */
+    synchronized void update(int id, int checksum) throws IOException {
+        ensureCapacity(id + 1);
+        checksums[id] = checksum;
+        versions[id]++;
+        writeEntry(id);
+    }
+    
+    /**
+     * Updates the entry of an archive that was written from its source.
+     * @param id The archive id.
+     * @param src The source byte array.
+     * @param len The length of the archive.
+     */
+    void update(int id, byte[] src, int len) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(src, 0, len);
+        update(id, (int) crc.getValue());
+    }
+    
+    /**
+     * Recomputes the checksum of an archive by reading it, the version is
+     * incremented if the checksum changed.
+     * @param id The archive id.
+     */
+    synchronized void refresh(int id) throws IOException {
+        int checksum = checksum(id);
+        if(checksum != getChecksum(id))
+            update(id, checksum);
+    }
+    
+    /**
+     * Recomputes the checksum of every archive of the index, the archives are
+     * read by a worker thread for each processor. The versions are kept and
+     * the version of every archive whose checksum changed is incremented.
+     */
+    public synchronized void rebuild() throws IOException {
+        final int amountEntries = index.amountEntries();
+        ensureCapacity(amountEntries);
+        final int[] computed = new int[amountEntries];
+        final AtomicInteger nextId = new AtomicInteger();
+        Thread[] workers = new Thread[Runtime.getRuntime().availableProcessors()];
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("ChecksumTable-" + i) {
+                @Override
+                public void run() {
+                    int id;
+                    while((id = nextId.getAndIncrement()) < amountEntries)
+                        computed[id] = checksum(id);
+                }
+            };
+            workers[i].start();
+        }
+        try {
+            for(int i = 0; i < workers.length; i++)
+                workers[i].join();
+        } catch(InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while rebuilding the checksums");
+        }
+        int[] checksums = Arrays.copyOf(computed, this.checksums.length);
+        int[] versions = this.versions;
+        for(int id = 0; id < amountEntries; id++) {
+            if(checksums[id] != this.checksums[id])
+                versions[id]++;
+        }
+        this.checksums = checksums;
+        writeTable(false);
+    }
+    
+    /**
+     * Computes the checksum of an archive.
+     * @param id The archive id.
+     * @return The CRC32 of the archive or zero if it could not be read.
+     */
+    private int checksum(int id) {
+        byte[] src = index.get(id);
+        if(src == null)
+            return 0;
+        CRC32 crc = new CRC32();
+        crc.update(src, 0, src.length);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Grows the table to hold an amount of entries.
+     * @param amountEntries The amount of entries.
+     */
+    private void ensureCapacity(int amountEntries) {
+        if(checksums.length >= amountEntries)
+            return;
+        int length = checksums.length << 1;
+        if(length < amountEntries)
+            length = amountEntries;
+        versions = Arrays.copyOf(versions, length);
+        checksums = Arrays.copyOf(checksums, length);
+    }
+    
+    /**
+     * Writes the entry of an archive to the table file.
+     * @param id The archive id.
+     */
+    private void writeEntry(int id) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(0, checksums[id]);
+        buffer.putInt(4, versions[id]);
+        FileStore.writeFully(channel, buffer, HEADER_SIZE + id * 8L);
+    }
+    
+    /**
+     * Writes the entire table to the table file.
+     * @param clean If the table is marked clean.
+     */
+    private void writeTable(boolean clean) throws IOException {
+        int[] checksums = this.checksums;
+        int[] versions = this.versions;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + checksums.length * 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(clean ? 1 : 0);
+        for(int id = 0; id < checksums.length; id++) {
+            buffer.putInt(checksums[id]);
+            buffer.putInt(versions[id]);
+        }
+        buffer.flip();
+        FileStore.writeFully(channel, buffer, 0L);
+        channel.truncate(buffer.limit());
+        channel.force(false);
+    }
+    
+    /**
+     * Loads the table file, the checksums are rebuilt if the file is missing,
+     * invalid or was not marked clean. The file is marked dirty afterwards.
+     */
+    private void load() throws IOException {
+        long length = channel.size();
+        boolean clean = false;
+        if(length >= HEADER_SIZE && (length - HEADER_SIZE) % 8L == 0L) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            if(FileStore.readFully(channel, buffer, 0L) && buffer.getInt(0) == MAGIC) {
+                int amountEntries = (int) ((length - HEADER_SIZE) / 8L);
+                int[] checksums = new int[amountEntries];
+                int[] versions = new int[amountEntries];
+                for(int id = 0, position = HEADER_SIZE; id < amountEntries; id++, position += 8) {
+                    checksums[id] = buffer.getInt(position);
+                    versions[id] = buffer.getInt(position + 4);
+                }
+                this.checksums = checksums;
+                this.versions = versions;
+                clean = buffer.getInt(4) == 1;
+            }
+        }
+        if(clean)
+            writeTable(false);
+        else
+            rebuild();
+    }
+    
+    /**
+     * Marks the table file clean and closes it.
+     */
+    synchronized void destroy() {
+        try {
+            writeTable(true);
+        } catch(IOException ioex) {}
+        try {
+            file.close();
+        } catch(IOException ioex) {}
+    }
+    
+    /**
+     * Constructs a new {@link ChecksumTable}; the table file is loaded or the
+     * table is rebuilt.
+     * @param index The {@link FileIndex} the checksums are of.
+     * @param file The table file.
+     */
+    ChecksumTable(FileIndex index, File file) throws IOException {
+        this.index = index;
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        load();
+    }
+}
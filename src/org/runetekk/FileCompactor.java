@@ -0,0 +1,146 @@
+package org.runetekk;
+
+import java.io.IOException;
+
+/**
+ * FileCompactor.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * Compacts the main file of a {@link FileStore} while its indexes keep
+ * serving reads. Each pass reclaims orphaned blocks, moves every fragmented
+ * archive into consecutive blocks, moves archives forward into free runs and
+ * truncates the free blocks at the end of the main file. The reads and writes
+ * of a pass are limited to a bandwidth budget. A pass only runs on a store
+ * that was opened from a cache directory with every index file open, since
+ * the blocks of an index that is not open could otherwise be handed out. The
+ * old chain of a moved archive is retired, see {@link FileStore#retire(int[])},
+ * so blocks that are still being read when the pass ends are only truncated
+ * by a later pass.
+ */
+public final class FileCompactor implements Runnable {
+    
+    /**
+     * The {@link FileStore} to compact.
+     */
+    private FileStore store;
+    
+    /**
+     * The maximum amount of bytes read and written per second or zero if
+     * the compactor is not limited.
+     */
+    private long bytesPerSecond;
+    
+    /**
+     * If the current pass was requested to stop.
+     */
+    private volatile boolean stopped;
+    
+    /**
+     * The amount of archives moved by the last pass.
+     */
+    private volatile int archivesMoved;
+    
+    /**
+     * The amount of blocks truncated from the main file by the last pass.
+     */
+    private volatile int blocksTruncated;
+    
+    /**
+     * The {@link IOException} that ended the last pass or null if the pass
+     * completed.
+     */
+    private volatile IOException failure;
+    
+    /**
+     * Runs a single compaction pass.
+     */
+    @Override
+    public void run() {
+        stopped = false;
+        archivesMoved = 0;
+        blocksTruncated = 0;
+        failure = null;
+        long start = System.nanoTime();
+        long bytes = 0L;
+        try {
+            if(!store.hasAllIndexes())
+                throw new IOException("the store does not have every index of the cache open");
+            store.rebuildFreeBlocks();
+            FileIndex[] indexes = store.indexes();
+            for(int i = 0; i < indexes.length && !stopped; i++) {
+                if(indexes[i] == null)
+                    continue;
+                int amountEntries = indexes[i].amountEntries();
+                for(int id = 0; id < amountEntries && !stopped; id++) {
+                    int[] chain = indexes[i].relocate(id);
+                    if(chain != null) {
+                        archivesMoved++;
+                        bytes += chain.length * 1040L;
+                    }
+                    throttle(start, bytes);
+                }
+            }
+            blocksTruncated = store.trim();
+        } catch(IOException ioex) {
+            failure = ioex;
+        } catch(InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Sleeps until the amount of bytes moved fits in the bandwidth budget.
+     * @param start The time in nanoseconds the pass started at.
+     * @param bytes The amount of bytes read and written so far.
+     */
+    private void throttle(long start, long bytes) throws InterruptedException {
+        if(bytesPerSecond <= 0L)
+            return;
+        long delay = bytes * 1000L / bytesPerSecond - (System.nanoTime() - start) / 1000000L;
+        if(delay > 0L)
+            Thread.sleep(delay);
+    }
+    
+    /**
+     * Requests the current pass to stop after the archive being moved.
+     */
+    public void stop() {
+        stopped = true;
+    }
+    
+    /**
+     * Gets the amount of archives moved by the last pass.
+     * @return The amount of archives.
+     */
+    public int getArchivesMoved() {
+        return archivesMoved;
+    }
+    
+    /**
+     * Gets the amount of blocks truncated from the main file by the last pass.
+     * @return The amount of blocks.
+     */
+    public int getBlocksTruncated() {
+        return blocksTruncated;
+    }
+    
+    /**
+     * Gets the {@link IOException} that ended the last pass.
+     * @return The exception or null if the pass completed.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+    
+    /**
+     * Constructs a new {@link FileCompactor};
+     * @param store The {@link FileStore} to compact.
+     * @param bytesPerSecond The maximum amount of bytes read and written per
+     *                       second or zero if the compactor is not limited.
+     */
+    public FileCompactor(FileStore store, long bytesPerSecond) {
+        this.store = store;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+}
@@ -1,7 +1,20 @@
 package org.runetekk;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * FileIndex.java
@@ -10,16 +23,90 @@ import java.io.IOException;
  */
 public final class FileIndex {
     
+    /**
+     * Option flag to serve reads from memory mapped views of the main file and
+     * the index file instead of seeking and reading for every chunk.
+     */
+    public static final int MAP_FILES = 0x1;
+    
+    /**
+     * Option flag to load the entire index file into memory when the
+     * {@link FileIndex} is constructed. Lookups are then served from memory
+     * and writes update both the memory table and the index file.
+     */
+    public static final int CACHE_INDEX = 0x2;
+    
+    /**
+     * Option flag to write archives through the write-ahead journal of the
+     * {@link FileStore}. Archives are written to new blocks and their index
+     * entries are only written to the index file when the store is committed,
+     * see {@link FileStore#commit()}.
+     */
+    public static final int JOURNAL = 0x4;
+    
+    /**
+     * Option flag to keep a {@link ChecksumTable} of the CRC32 and version of
+     * every archive in a file next to the index file, see
+     * {@link #getChecksums()}. Only available to indexes that are opened
+     * with {@link FileStore#open(java.io.File, int)}.
+     */
+    public static final int CHECKSUMS = 0x8;
+    
+    /**
+     * The value returned when an archive does not exist or failed validation.
+     */
+    public static final int NOT_FOUND = -1;
+    
+    /**
+     * The value returned when an archive does not fit in a caller supplied
+     * buffer, see {@link #size(int)}.
+     */
+    public static final int BUFFER_TOO_SMALL = -2;
+    
+    /**
+     * The maximum amount of blocks that are read at once when the chunks of
+     * an archive are stored in consecutive blocks.
+     */
+    private static final int MAX_RUN_BLOCKS = 64;
+    
+    /**
+     * The maximum amount of blocks that are laid out in memory before they
+     * are written to the main file by {@link #putAll(int[], byte[][])}.
+     */
+    private static final int MAX_WRITE_BLOCKS = 2048;
+    
+    /**
+     * The amount of bytes the index file has to grow past its mapping before
+     * it is mapped again, see {@link #remapIndex()}.
+     */
+    private static final long INDEX_REMAP_SIZE = 1 << 16;
+    
+    /**
+     * The per thread buffer that chunks are read into by {@link #get(int)}.
+     */
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_RUN_BLOCKS * 520);
+        }
+    };
+    
     /**
      * The index id for this {@link FileIndex}.
      */
     private int indexId;
     
     /**
-     * The {@link RandomAccessFile} that contains all the chunks for the archives
-     * in the file system. 
+     * The {@link FileStore} that owns the main file which contains all the 
+     * chunks for the archives in the file system. 
+     */
+    private FileStore store;
+    
+    /**
+     * If the {@link FileStore} was created for this {@link FileIndex} alone and
+     * should be destroyed along with it.
      */
-    private RandomAccessFile mainFile;
+    private boolean ownsStore;
     
     /**
      * The {@link RandomAccessFile} that contains all the chunk reference and
@@ -27,64 +114,677 @@ public final class FileIndex {
      */
     private RandomAccessFile indexFile;
     
+    /**
+     * The {@link FileChannel} of the index file used for positional reads
+     * and writes.
+     */
+    private FileChannel indexChannel;
+    
     /**
      * The byte array that will be used for parsing/writing archives.
      */
     private byte[] chunkBuffer;
     
+    /**
+     * The option flags for this {@link FileIndex}.
+     */
+    private int flags;
+    
+    /**
+     * The mapped index file, only used when this {@link FileIndex} was
+     * created with {@link #MAP_FILES}.
+     */
+    private volatile MappedByteBuffer indexBuffer;
+    
+    /**
+     * The cached index entries with the archive size in the upper 24 bits
+     * and the first block in the lower 24 bits, only used when this
+     * {@link FileIndex} was created with {@link #CACHE_INDEX}. The size and
+     * the block of an entry are packed into a single value so a reader never
+     * pairs the size of one entry with the block of another.
+     */
+    private volatile AtomicLongArray cachedEntries;
+    
+    /**
+     * The lock that guards remapping the index file.
+     */
+    private final Object mapLock = new Object();
+    
+    /**
+     * The lock that guards writing index entries.
+     */
+    private final Object entryLock = new Object();
+    
+    /**
+     * The amount of times writing index entries to the index file started and
+     * finished, which is odd while entries are being written. Entries read
+     * from the index file are read again if this changed while they were
+     * read so that a reader never sees half of a written entry.
+     */
+    private volatile long entrySequence;
+    
+    /**
+     * The write-ahead journal of the {@link FileStore}, only used when this
+     * {@link FileIndex} was created with {@link #JOURNAL}.
+     */
+    private FileJournal journal;
+    
+    /**
+     * The checksum table of this index, only used when this {@link FileIndex}
+     * was created with {@link #CHECKSUMS}.
+     */
+    private ChecksumTable checksums;
+    
     /**
      * Creates a new source byte array for an archive parsed from this 
      * {@link FileIndex}. If an {@link IOExceptioN} is thrown while parsing the
-     * archive then the method will return null. 
+     * archive then the method will return null. Chunks are read with
+     * positional reads into a per thread buffer so this method may be called
+     * from any amount of threads at once, writes remain serialized. While
+     * the chunks are stored in consecutive blocks they are read in runs of up 
+     * to {@link #MAX_RUN_BLOCKS} blocks with a single read and validated in
+     * memory, once the chain jumps the remaining chunks are read one by one.
+     * Chunks held by the {@link SectorCache} of the {@link FileStore} are
+     * copied from the cache instead of being read. Archives are never
+     * overwritten in place and the chain of a replaced archive is only
+     * released once the reads that entered before it was replaced are done,
+     * see {@link FileStore#enterRead()}, so a read served alongside a write
+     * returns either the previous or the new archive.
      * @param id The archive id.
      * @return The created source byte array.
      */
     public byte[] get(int id) {
+        FileStore.ReadEpoch epoch = store.enterRead();
         try {
-            indexFile.seek(6L * id);
-            int read;
-            for(int i = 0; i < 6; i += read) {
-                read = indexFile.read(chunkBuffer, i, 6 - i);
-                if(read == -1)
-                    return null;
-            }
-            int size = ((chunkBuffer[0] & 0xff) << 16) + ((chunkBuffer[1] & 0xff) << 8) + (chunkBuffer[2] & 0xff);
-            int block = ((chunkBuffer[3] & 0xff) << 16) + ((chunkBuffer[4] & 0xff) << 8) + (chunkBuffer[5] & 0xff);
-            if(size < 0)
+            long entry = lookup(id);
+            if(entry == -1L)
                 return null;
-            if(block <= 0 || (long)block > mainFile.length() / 520L)
+            byte src[] = new byte[(int) (entry >>> 24)];
+            if(read(id, entry, src, 0, null) < 0)
                 return null;
-            byte src[] = new byte[size];
-            int archiveOffset = 0;
-            for(int chunk = 0; archiveOffset < size; chunk++) {
-                if(block == 0)
-                    return null;
-                mainFile.seek(520L * block);
-                int off = 0;
-                int blockSize = size - archiveOffset;
+            return src;
+        } catch(IOException ioex) {
+            return null;
+        } finally {
+            store.exitRead(epoch);
+        }
+    }
+    
+    /**
+     * Reads an archive into a caller supplied buffer, starting at the 
+     * position of the buffer. Both heap and direct buffers are supported,
+     * the position of the buffer is moved past the archive once it is read.
+     * @param id The archive id.
+     * @param dst The destination buffer.
+     * @return The archive length, {@link #NOT_FOUND} if the archive does not
+     *         exist or failed validation or {@link #BUFFER_TOO_SMALL} if the
+     *         archive does not fit in the remaining space of the buffer.
+     */
+    public int get(int id, ByteBuffer dst) {
+        FileStore.ReadEpoch epoch = store.enterRead();
+        try {
+            long entry = lookup(id);
+            if(entry == -1L)
+                return NOT_FOUND;
+            int size = (int) (entry >>> 24);
+            if(dst.remaining() < size)
+                return BUFFER_TOO_SMALL;
+            int position = dst.position();
+            int read = read(id, entry, null, 0, dst);
+            dst.position(read < 0 ? position : position + size);
+            return read;
+        } catch(IOException ioex) {
+            return NOT_FOUND;
+        } finally {
+            store.exitRead(epoch);
+        }
+    }
+    
+    /**
+     * Reads an archive into a caller supplied byte array.
+     * @param id The archive id.
+     * @param dst The destination byte array.
+     * @param off The offset in the byte array to read the archive to.
+     * @return The archive length, {@link #NOT_FOUND} if the archive does not
+     *         exist or failed validation or {@link #BUFFER_TOO_SMALL} if the
+     *         archive does not fit in the byte array after the offset.
+     */
+    public int get(int id, byte[] dst, int off) {
+        FileStore.ReadEpoch epoch = store.enterRead();
+        try {
+            long entry = lookup(id);
+            if(entry == -1L)
+                return NOT_FOUND;
+            if(dst.length - off < (int) (entry >>> 24))
+                return BUFFER_TOO_SMALL;
+            return read(id, entry, dst, off, null);
+        } catch(IOException ioex) {
+            return NOT_FOUND;
+        } finally {
+            store.exitRead(epoch);
+        }
+    }
+    
+    /**
+     * Gets the length of an archive so that a buffer can be sized for it.
+     * @param id The archive id.
+     * @return The archive length or {@link #NOT_FOUND} if the archive does
+     *         not exist.
+     */
+    public int size(int id) {
+        try {
+            long entry = lookup(id);
+            if(entry == -1L || (entry & 0xffffff) <= 0)
+                return NOT_FOUND;
+            return (int) (entry >>> 24);
+        } catch(IOException ioex) {
+            return NOT_FOUND;
+        }
+    }
+    
+    /**
+     * Reads the chunks of an archive into either a byte array or a buffer.
+     * @param id The archive id.
+     * @param entry The index entry of the archive.
+     * @param array The destination byte array or null to read to the buffer.
+     * @param arrayOffset The offset in the destination byte array.
+     * @param dst The destination buffer, the archive is read to it starting
+     *            at its position. Its position is left undefined.
+     * @return The archive length or {@link #NOT_FOUND} if the chain failed
+     *         validation.
+     */
+    private int read(int id, long entry, byte[] array, int arrayOffset, ByteBuffer dst) throws IOException {
+        if((flags & MAP_FILES) != 0)
+            return readMapped(id, entry, array, arrayOffset, dst);
+        int size = (int) (entry >>> 24);
+        int block = (int) entry & 0xffffff;
+        ByteBuffer buffer = READ_BUFFER.get();
+        long mainBlocks = store.length() / 520L;
+        if(block <= 0 || (size > 0 && (long)block > mainBlocks))
+            return NOT_FOUND;
+        SectorCache cache = store.sectorCache();
+        int start = dst == null ? 0 : dst.position();
+        int archiveOffset = 0;
+        int runBlock = 0;
+        int runLength = 0;
+        boolean sequential = true;
+        for(int chunk = 0; archiveOffset < size; chunk++) {
+            if(block == 0)
+                return NOT_FOUND;
+            int blockSize = size - archiveOffset;
+            if(blockSize > 512)
+                blockSize = 512;
+            int off = (block - runBlock) * 520;
+            if((block < runBlock || off + blockSize + 8 > runLength) && cache != null) {
+                buffer.clear();
+                buffer.limit(blockSize + 8);
+                if(cache.get(block, buffer)) {
+                    runBlock = block;
+                    runLength = blockSize + 8;
+                    off = 0;
+                }
+            }
+            if(block < runBlock || off + blockSize + 8 > runLength) {
+                long generation = cache == null ? 0L : cache.generation();
+                int runBlocks = 1;
+                if(sequential) {
+                    runBlocks = (size - archiveOffset + 511) / 512;
+                    if(runBlocks > MAX_RUN_BLOCKS)
+                        runBlocks = MAX_RUN_BLOCKS;
+                }
+                runLength = runBlocks * 520;
+                if(archiveOffset + runBlocks * 512 >= size)
+                    runLength -= 512 - (size - archiveOffset - (runBlocks - 1) * 512);
+                buffer.clear();
+                buffer.limit(runLength);
+                if(!store.read(buffer, 520L * block)) {
+                    if(runBlocks == 1)
+                        return NOT_FOUND;
+                    sequential = false;
+                    runLength = blockSize + 8;
+                    buffer.clear();
+                    buffer.limit(runLength);
+                    if(!store.read(buffer, 520L * block))
+                        return NOT_FOUND;
+                }
+                if(cache != null)
+                    cache.put(block, buffer, runLength, generation);
+                runBlock = block;
+                off = 0;
+            }
+            int expectedArchive = ((buffer.get(off) & 0xff) << 8) + (buffer.get(off + 1) & 0xff);
+            int expectedChunk = ((buffer.get(off + 2) & 0xff) << 8) + (buffer.get(off + 3) & 0xff);
+            int nextBlock = ((buffer.get(off + 4) & 0xff) << 16) + ((buffer.get(off + 5) & 0xff) << 8) + (buffer.get(off + 6) & 0xff);
+            int expectedIndex = buffer.get(off + 7) & 0xff;
+            if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
+                return NOT_FOUND;
+            if(nextBlock < 0 || (long)nextBlock > mainBlocks && (long)nextBlock > (mainBlocks = store.length() / 520L))
+                return NOT_FOUND;
+            if(nextBlock != block + 1)
+                sequential = false;
+            buffer.limit(off + 8 + blockSize);
+            buffer.position(off + 8);
+            if(array != null)
+                buffer.get(array, arrayOffset + archiveOffset, blockSize);
+            else {
+                dst.position(start + archiveOffset);
+                dst.put(buffer);
+            }
+            buffer.limit(runLength);
+            archiveOffset += blockSize;
+            block = nextBlock;
+        }
+        return size;
+    }
+    
+    
+    /**
+     * Opens an {@link InputStream} over an archive. The chunks are read and
+     * validated lazily as the stream is consumed, a chunk that fails
+     * validation makes the stream throw an {@link IOException} when it is
+     * reached. The stream holds a read of the {@link FileStore} until it is
+     * closed or read to its end, see {@link FileStore#enterRead()}, so the
+     * chain keeps its blocks even if the archive is replaced. A stream that
+     * is left open keeps every block retired after it was opened from being
+     * handed out again.
+     * @param id The archive id.
+     * @return The opened stream or null if the archive does not exist.
+     */
+    public InputStream openStream(int id) {
+        FileStore.ReadEpoch epoch = store.enterRead();
+        try {
+            long entry = lookup(id);
+            int block = (int) entry & 0xffffff;
+            if(entry != -1L && block > 0) {
+                InputStream stream = new FileIndexInputStream(store, epoch, indexId, id, (int) (entry >>> 24), block);
+                epoch = null;
+                return stream;
+            }
+            return null;
+        } catch(IOException ioex) {
+            return null;
+        } finally {
+            if(epoch != null)
+                store.exitRead(epoch);
+        }
+    }
+    
+    /**
+     * Opens an {@link OutputStream} that writes an archive of unknown length.
+     * Chunks are written to newly reserved blocks as the bytes arrive and the
+     * archive replaces the previous archive with the same id once the stream
+     * is closed, see {@link #put(byte[], int, int)}. Writing more than the 
+     * maximum archive size of 16777215 bytes fails with an {@link IOException}.
+     * @param id The archive id.
+     * @return The opened stream or null if the id is out of range.
+     */
+    public OutputStream openOutputStream(int id) {
+        try {
+            if(id < 0 || id > 0xffff)
+                return null;
+            return new FileIndexOutputStream(this, store, indexId, id);
+        } catch(IOException ioex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Transfers the payload of an archive to a channel without copying it 
+     * into the Java heap. The chunk headers of the whole chain are validated 
+     * before any bytes are transferred and then the payload of each chunk is 
+     * transferred straight from the main file, skipping the chunk headers. 
+     * When this {@link FileIndex} was created with {@link #MAP_FILES} the
+     * payloads are written from the mapped main file with a gathering write.
+     * The target channel should be in blocking mode. The transfer holds a read
+     * of the {@link FileStore}, see {@link FileStore#enterRead()}, so the
+     * validated blocks are not handed out again before it is done.
+     * @param id The archive id.
+     * @param target The channel to transfer the payload to.
+     * @return The amount of bytes transferred or -1 if the archive does not
+     *         exist or its chain failed validation.
+     */
+    public long transferTo(int id, WritableByteChannel target) throws IOException {
+        FileStore.ReadEpoch epoch = store.enterRead();
+        try {
+            return transfer(id, target);
+        } finally {
+            store.exitRead(epoch);
+        }
+    }
+    
+    /**
+     * Transfers the payload of an archive to a channel, see
+     * {@link #transferTo(int, WritableByteChannel)}.
+     * @param id The archive id.
+     * @param target The channel to transfer the payload to.
+     * @return The amount of bytes transferred or -1 if the archive does not
+     *         exist or its chain failed validation.
+     */
+    private long transfer(int id, WritableByteChannel target) throws IOException {
+        long entry = lookup(id);
+        if(entry == -1L)
+            return -1L;
+        int size = (int) (entry >>> 24);
+        if((entry & 0xffffff) <= 0)
+            return -1L;
+        int[] chain = chain(id, entry);
+        if(chain.length != (size + 511) / 512)
+            return -1L;
+        if((flags & MAP_FILES) != 0) {
+            ByteBuffer[] payloads = new ByteBuffer[chain.length];
+            for(int chunk = 0; chunk < chain.length; chunk++) {
+                int blockSize = size - chunk * 512;
                 if(blockSize > 512)
                     blockSize = 512;
-                read = 0;
-                for(; off < blockSize + 8; off += read)  {
-                    read = mainFile.read(chunkBuffer, off, (blockSize + 8) - off);
-                    if(read == -1)
-                        return null;
+                MappedByteBuffer segment = store.segment(chain[chunk], blockSize + 8);
+                ByteBuffer payload;
+                if(segment != null) {
+                    int off = (chain[chunk] % FileStore.SEGMENT_BLOCKS) * 520;
+                    payload = segment.duplicate();
+                    payload.limit(off + 8 + blockSize);
+                    payload.position(off + 8);
+                } else {
+                    payload = ByteBuffer.allocate(blockSize);
+                    if(!store.read(payload, 520L * chain[chunk] + 8L))
+                        return -1L;
+                    payload.flip();
                 }
-                int expectedArchive = ((chunkBuffer[0] & 0xff) << 8) + (chunkBuffer[1] & 0xff);
-                int expectedChunk = ((chunkBuffer[2] & 0xff) << 8) + (chunkBuffer[3] & 0xff);
-                int nextBlock = ((chunkBuffer[4] & 0xff) << 16) + ((chunkBuffer[5] & 0xff) << 8) + (chunkBuffer[6] & 0xff);
-                int expectedIndex = chunkBuffer[7] & 0xff;
-                if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
-                    return null;
-                if(nextBlock < 0 || (long)nextBlock > mainFile.length() / 520L)
-                    return null;
-                for(int i = 0; i < blockSize; i++)
-                    src[archiveOffset++] = chunkBuffer[i + 8];
-                block = nextBlock;
+                payloads[chunk] = payload;
             }
-            return src;
+            if(target instanceof GatheringByteChannel) {
+                GatheringByteChannel channel = (GatheringByteChannel) target;
+                long remaining = size;
+                while(remaining > 0L)
+                    remaining -= channel.write(payloads);
+            } else {
+                for(int chunk = 0; chunk < payloads.length; chunk++) {
+                    while(payloads[chunk].hasRemaining())
+                        target.write(payloads[chunk]);
+                }
+            }
+        } else {
+            for(int chunk = 0; chunk < chain.length; chunk++) {
+                int blockSize = size - chunk * 512;
+                if(blockSize > 512)
+                    blockSize = 512;
+                store.transferTo(520L * chain[chunk] + 8L, blockSize, target);
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Reads an archive on the {@link FileScheduler} of the {@link FileStore}.
+     * Queued reads are served in the order of their first block rather than
+     * the order they were requested in, the entry is looked up by a worker
+     * of the scheduler so requesting never waits on the index file. A read
+     * is not ordered with respect to queued writes of the same archive.
+     * @param id The archive id.
+     * @return The future for the source byte array which completes with null
+     *         like {@link #get(int)} or exceptionally with a
+     *         {@link RejectedExecutionException} if the queue is full or with
+     *         the exception thrown while reading.
+     */
+    public CompletableFuture<byte[]> getAsync(final int id) {
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(get(id));
+                } catch(Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        };
+        if(!store.scheduler().submitRead(this, id, work))
+            future.completeExceptionally(new RejectedExecutionException("the file scheduler queue is full"));
+        return future;
+    }
+    
+    /**
+     * Writes an archive on the {@link FileScheduler} of the {@link FileStore},
+     * see {@link #put(byte[], int, int)}. Queued writes are served one at a
+     * time in the order they were requested in, so the archive written by
+     * the last queued write of an id is the one that stays.
+     * @param src The source of the file to encode.
+     * @param id The id of the file to encode the file as.
+     * @param len The length of the file.
+     * @return The future for if writing the file was successful which 
+     *         completes exceptionally with a {@link RejectedExecutionException}
+     *         if the queue is full or with the exception thrown while writing.
+     */
+    public CompletableFuture<Boolean> putAsync(final byte src[], final int id, final int len) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(put(src, id, len));
+                } catch(Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        };
+        if(!store.scheduler().submitWrite(work))
+            future.completeExceptionally(new RejectedExecutionException("the file scheduler queue is full"));
+        return future;
+    }
+    
+    /**
+     * Gets the position in the main file of the first block of an archive
+     * that queued reads are ordered by. Called by a worker of the
+     * {@link FileScheduler} once the read is queued.
+     * @param id The archive id.
+     * @return The position or zero if the archive has no entry.
+     */
+    long position(int id) {
+        try {
+            long entry = lookup(id);
+            return entry == -1L ? 0L : 520L * (entry & 0xffffff);
         } catch(IOException ioex) {
-            return null;
+            return 0L;
+        }
+    }
+    
+    /**
+     * Looks up the index entry for an archive. An entry that is staged in
+     * the journal takes precedence over the entry in the index file.
+     * @param id The archive id.
+     * @return The archive size in the upper 24 bits and the first block in
+     *         the lower 24 bits or -1 if the entry does not exist.
+     */
+    private long lookup(int id) throws IOException {
+        if(journal != null) {
+            long entry = journal.pending(indexId, id);
+            if(entry != -1L)
+                return entry;
+        }
+        return readEntry(id);
+    }
+    
+    /**
+     * Reads the index entry for an archive. The entry is taken from the
+     * cached index table when this {@link FileIndex} was created with
+     * {@link #CACHE_INDEX}, from the mapped index file when it was created
+     * with {@link #MAP_FILES} and otherwise read from the index file. An
+     * entry read from the index file while entries were being written is
+     * read again, see {@link #entrySequence}.
+     * @param id The archive id.
+     * @return The archive size in the upper 24 bits and the first block in
+     *         the lower 24 bits or -1 if the entry does not exist.
+     */
+    long readEntry(int id) throws IOException {
+        if(id < 0)
+            return -1L;
+        if((flags & CACHE_INDEX) != 0) {
+            AtomicLongArray table = cachedEntries;
+            if(id >= table.length())
+                return -1L;
+            return table.get(id);
+        }
+        for(;;) {
+            long sequence = entrySequence;
+            if((sequence & 1L) != 0L) {
+                Thread.yield();
+                continue;
+            }
+            long entry = loadEntry(id);
+            if(entrySequence == sequence)
+                return entry;
+        }
+    }
+    
+    /**
+     * Reads the index entry for an archive from the mapped index file or the
+     * index file.
+     * @param id The archive id.
+     * @return The archive size in the upper 24 bits and the first block in
+     *         the lower 24 bits or -1 if the entry does not exist.
+     */
+    private long loadEntry(int id) throws IOException {
+        long position = 6L * id;
+        int offset = 0;
+        ByteBuffer buffer = null;
+        if((flags & MAP_FILES) != 0) {
+            buffer = indexBuffer;
+            if(position + 6L > buffer.limit())
+                buffer = remapIndex();
+            if(position + 6L <= buffer.limit())
+                offset = (int) position;
+            else
+                buffer = null;
+        }
+        if(buffer == null) {
+            buffer = READ_BUFFER.get();
+            buffer.clear();
+            buffer.limit(6);
+            if(!FileStore.readFully(indexChannel, buffer, position))
+                return -1L;
+        }
+        int size = ((buffer.get(offset) & 0xff) << 16) + ((buffer.get(offset + 1) & 0xff) << 8) + (buffer.get(offset + 2) & 0xff);
+        int block = ((buffer.get(offset + 3) & 0xff) << 16) + ((buffer.get(offset + 4) & 0xff) << 8) + (buffer.get(offset + 5) & 0xff);
+        return (long) size << 24 | block;
+    }
+    
+    /**
+     * Loads the entire index file into the cached index table.
+     */
+    private void loadIndex() throws IOException {
+        int amountEntries = (int) (indexChannel.size() / 6L);
+        ByteBuffer buffer = ByteBuffer.allocate(amountEntries * 6);
+        if(!FileStore.readFully(indexChannel, buffer, 0L))
+            throw new IOException("index file truncated while loading");
+        AtomicLongArray table = new AtomicLongArray(amountEntries);
+        for(int i = 0, position = 0; i < amountEntries; i++, position += 6) {
+            int size = ((buffer.get(position) & 0xff) << 16) + ((buffer.get(position + 1) & 0xff) << 8) + (buffer.get(position + 2) & 0xff);
+            int block = ((buffer.get(position + 3) & 0xff) << 16) + ((buffer.get(position + 4) & 0xff) << 8) + (buffer.get(position + 5) & 0xff);
+            table.set(i, (long) size << 24 | block);
+        }
+        cachedEntries = table;
+    }
+    
+    /**
+     * Updates an entry in the cached index table, the table is grown if the
+     * archive id does not fit in it.
+     * @param id The archive id.
+     * @param size The archive size.
+     * @param block The first block of the archive.
+     */
+    private void cacheEntry(int id, int size, int block) {
+        AtomicLongArray table = cachedEntries;
+        if(id >= table.length()) {
+            int length = table.length() << 1;
+            if(length <= id)
+                length = id + 1;
+            AtomicLongArray grown = new AtomicLongArray(length);
+            for(int i = 0; i < table.length(); i++)
+                grown.set(i, table.get(i));
+            grown.set(id, (long) size << 24 | block);
+            cachedEntries = grown;
+        } else
+            table.set(id, (long) size << 24 | block);
+    }
+    
+    /**
+     * Reads the chunks of an archive into either a byte array or a buffer by
+     * walking the chunk chain directly in the mapped main file. Chunks that
+     * lie beyond the mapped part of the main file are read from the main file
+     * instead, see {@link FileStore#segment(int, int)}.
+     * @param id The archive id.
+     * @param entry The index entry of the archive.
+     * @param array The destination byte array or null to read to the buffer.
+     * @param arrayOffset The offset in the destination byte array.
+     * @param dst The destination buffer, the archive is read to it starting
+     *            at its position. Its position is left undefined.
+     * @return The archive length or {@link #NOT_FOUND} if the chain failed
+     *         validation.
+     */
+    private int readMapped(int id, long entry, byte[] array, int arrayOffset, ByteBuffer dst) throws IOException {
+        int size = (int) (entry >>> 24);
+        int block = (int) entry & 0xffffff;
+        if(block <= 0)
+            return NOT_FOUND;
+        int start = dst == null ? 0 : dst.position();
+        ByteBuffer viewSegment = null;
+        ByteBuffer view = null;
+        int archiveOffset = 0;
+        for(int chunk = 0; archiveOffset < size; chunk++) {
+            if(block == 0)
+                return NOT_FOUND;
+            int blockSize = size - archiveOffset;
+            if(blockSize > 512)
+                blockSize = 512;
+            ByteBuffer buffer = store.segment(block, blockSize + 8);
+            int off = (block % FileStore.SEGMENT_BLOCKS) * 520;
+            if(buffer == null) {
+                buffer = READ_BUFFER.get();
+                buffer.clear();
+                buffer.limit(blockSize + 8);
+                if(!store.read(buffer, 520L * block))
+                    return NOT_FOUND;
+                off = 0;
+            }
+            int expectedArchive = ((buffer.get(off) & 0xff) << 8) + (buffer.get(off + 1) & 0xff);
+            int expectedChunk = ((buffer.get(off + 2) & 0xff) << 8) + (buffer.get(off + 3) & 0xff);
+            int nextBlock = ((buffer.get(off + 4) & 0xff) << 16) + ((buffer.get(off + 5) & 0xff) << 8) + (buffer.get(off + 6) & 0xff);
+            int expectedIndex = buffer.get(off + 7) & 0xff;
+            if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
+                return NOT_FOUND;
+            if(nextBlock < 0)
+                return NOT_FOUND;
+            if(buffer != viewSegment) {
+                view = buffer.duplicate();
+                viewSegment = buffer;
+            }
+            view.limit(off + 8 + blockSize);
+            view.position(off + 8);
+            if(array != null)
+                view.get(array, arrayOffset + archiveOffset, blockSize);
+            else {
+                dst.position(start + archiveOffset);
+                dst.put(view);
+            }
+            archiveOffset += blockSize;
+            block = nextBlock;
+        }
+        return size;
+    }
+    
+    /**
+     * Remaps the index file so that the mapping covers the entire file. The
+     * mapping is kept as long as the index file has grown less than
+     * {@link #INDEX_REMAP_SIZE} bytes past it.
+     * @return The new mapped index file.
+     */
+    private MappedByteBuffer remapIndex() throws IOException {
+        synchronized(mapLock) {
+            FileChannel channel = indexChannel;
+            long length = channel.size();
+            MappedByteBuffer index = indexBuffer;
+            if(index == null || index.limit() > length || length - index.limit() >= INDEX_REMAP_SIZE)
+                indexBuffer = index = channel.map(FileChannel.MapMode.READ_ONLY, 0L, length);
+            return index;
         }
     }
     
@@ -96,83 +796,231 @@ public final class FileIndex {
      * @return If writing the file to this {@link FileIndex} was successful.
      */
     public synchronized boolean put(byte src[], int id, int len) {
-        boolean successful = put(src, id, len, true);
-        if(!successful)
-            successful = put(src, id, len, false);
+        boolean successful;
+        if(journal != null)
+            successful = stage(src, id, len);
+        else
+            successful = write(src, id, len);
+        invalidate(id);
+        updateChecksum(id, successful ? src : null, len);
         return successful;
     }
+    
+    /**
+     * Writes an archive to new consecutive blocks and stages its index entry
+     * in the journal.
+     * @param src The source byte array.
+     * @param id The archive id.
+     * @param len The length of the source byte array.
+     * @return If writing the archive to this {@link FileIndex} was successful.
+     */
+    private boolean stage(byte src[], int id, int len) {
+        try {
+            if(id < 0 || id > 0xffff || len > 0xffffff)
+                return false;
+            int amountChunks = (len + 511) / 512;
+            if(amountChunks == 0)
+                amountChunks = 1;
+            int firstBlock = store.allocateRun(amountChunks, -1);
+            byte[] dst = new byte[amountChunks * 520];
+            int length = layout(dst, 0, src, id, len, firstBlock);
+            store.write(ByteBuffer.wrap(dst, 0, length), 520L * firstBlock);
+            journal.stage(indexId, id, len, firstBlock);
+            if(len == 0)
+                store.release(firstBlock);
+            return true;
+        } catch(IOException ioex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Writes a batch of archives to the cache. The archives are laid out in
+     * a single run of consecutive blocks which is written with as few writes
+     * as possible, after which all the index entries are written at once.
+     * If an archive id is listed more than once the last payload is written.
+     * When this {@link FileIndex} was created with {@link #JOURNAL} the index
+     * entries are staged in the journal instead.
+     * @param ids The archive ids.
+     * @param payloads The byte array payloads for each archive id.
+     * @return If writing the archives to this {@link FileIndex} was successful.
+     */
+    public synchronized boolean putAll(int[] ids, byte[][] payloads) {
+        boolean successful = false;
+        try {
+            int minId = Integer.MAX_VALUE;
+            int maxId = -1;
+            for(int i = 0; i < ids.length; i++) {
+                if(ids[i] < 0 || ids[i] > 0xffff || payloads[i].length > 0xffffff)
+                    return false;
+                if(ids[i] < minId)
+                    minId = ids[i];
+                if(ids[i] > maxId)
+                    maxId = ids[i];
+            }
+            if(maxId == -1)
+                return true;
+            int[] latest = new int[maxId - minId + 1];
+            Arrays.fill(latest, -1);
+            for(int i = 0; i < ids.length; i++)
+                latest[ids[i] - minId] = i;
+            int amountBlocks = 0;
+            for(int i = 0; i < latest.length; i++) {
+                if(latest[i] != -1) {
+                    int blocks = (payloads[latest[i]].length + 511) / 512;
+                    amountBlocks += blocks == 0 ? 1 : blocks;
+                }
+            }
+            int firstBlock = store.allocateRun(amountBlocks, -1);
+            int[] blocks = new int[latest.length];
+            byte[] buffer = new byte[MAX_WRITE_BLOCKS * 520];
+            int bufferBlock = firstBlock;
+            int bufferOffset = 0;
+            int bufferLength = 0;
+            int block = firstBlock;
+            for(int i = 0; i < latest.length; i++) {
+                if(latest[i] == -1)
+                    continue;
+                byte[] src = payloads[latest[i]];
+                int amountChunks = (src.length + 511) / 512;
+                if(amountChunks == 0)
+                    amountChunks = 1;
+                if(bufferOffset > 0 && bufferOffset + amountChunks * 520 > buffer.length) {
+                    store.write(ByteBuffer.wrap(buffer, 0, bufferLength), 520L * bufferBlock);
+                    bufferOffset = 0;
+                    bufferLength = 0;
+                }
+                if(bufferOffset == 0)
+                    bufferBlock = block;
+                if(amountChunks > MAX_WRITE_BLOCKS) {
+                    byte[] dst = new byte[amountChunks * 520];
+                    int length = layout(dst, 0, src, minId + i, src.length, block);
+                    store.write(ByteBuffer.wrap(dst, 0, length), 520L * block);
+                } else {
+                    int length = layout(buffer, bufferOffset, src, minId + i, src.length, block);
+                    bufferLength = bufferOffset + length;
+                    bufferOffset += amountChunks * 520;
+                    Arrays.fill(buffer, bufferLength, bufferOffset, (byte) 0);
+                }
+                blocks[i] = block;
+                block += amountChunks;
+            }
+            if(bufferOffset > 0)
+                store.write(ByteBuffer.wrap(buffer, 0, bufferLength), 520L * bufferBlock);
+            if(journal != null) {
+                for(int i = 0; i < latest.length; i++) {
+                    if(latest[i] != -1)
+                        journal.stage(indexId, minId + i, payloads[latest[i]].length, blocks[i]);
+                }
+                releaseEmpty(latest, payloads, blocks);
+                successful = true;
+                return true;
+            }
+            int[][] chains = new int[latest.length][];
+            for(int i = 0; i < latest.length; i++) {
+                if(latest[i] != -1)
+                    chains[i] = chain(minId + i);
+            }
+            ByteBuffer entries = ByteBuffer.allocate(latest.length * 6);
+            if(!FileStore.readFully(indexChannel, entries, minId * 6L)) {
+                while(entries.hasRemaining())
+                    entries.put((byte) 0);
+            }
+            for(int i = 0; i < latest.length; i++) {
+                if(latest[i] == -1)
+                    continue;
+                int size = payloads[latest[i]].length;
+                int position = i * 6;
+                entries.put(position, (byte) (size >> 16));
+                entries.put(position + 1, (byte) (size >> 8));
+                entries.put(position + 2, (byte)  size);
+                entries.put(position + 3, (byte) (blocks[i] >> 16));
+                entries.put(position + 4, (byte) (blocks[i] >> 8));
+                entries.put(position + 5, (byte)  blocks[i]);
+            }
+            entries.flip();
+            synchronized(entryLock) {
+                entrySequence++;
+                try {
+                    FileStore.writeFully(indexChannel, entries, minId * 6L);
+                } finally {
+                    entrySequence++;
+                }
+                if((flags & CACHE_INDEX) != 0) {
+                    for(int i = 0; i < latest.length; i++) {
+                        if(latest[i] != -1)
+                            cacheEntry(minId + i, payloads[latest[i]].length, blocks[i]);
+                    }
+                }
+            }
+            for(int i = 0; i < latest.length; i++)
+                store.retire(chains[i]);
+            releaseEmpty(latest, payloads, blocks);
+            successful = true;
+            return true;
+        } catch(IOException ioex) {
+            return false;
+        } finally {
+            BitSet updated = new BitSet();
+            for(int i = ids.length - 1; i >= 0; i--) {
+                invalidate(ids[i]);
+                if(ids[i] < 0 || ids[i] > 0xffff || updated.get(ids[i]))
+                    continue;
+                updated.set(ids[i]);
+                updateChecksum(ids[i], successful ? payloads[i] : null, payloads[i].length);
+            }
+        }
+    }
 
     /**
-     * Writes an archive to the cache, the archive will succeed always
-     * if the file does not exist and {@link IOException} is not thrown.
-     * If the exists option is true then the written archive will override
-     * all the data for the previously written archive.
+     * Releases the blocks of the archives of size zero written by a batch,
+     * an archive of size zero owns no blocks.
+     * @param latest The payload index of each archive id of the batch or -1.
+     * @param payloads The payloads of the batch.
+     * @param blocks The first block of each archive id of the batch.
+     */
+    private void releaseEmpty(int[] latest, byte[][] payloads, int[] blocks) {
+        for(int i = 0; i < latest.length; i++) {
+            if(latest[i] != -1 && payloads[latest[i]].length == 0)
+                store.release(blocks[i]);
+        }
+    }
+    
+    /**
+     * Writes an archive to newly allocated blocks, an archive is never
+     * overwritten in place so reads that looked up the previous entry keep
+     * reading the previous chain. The index entry is written once every chunk
+     * is written and the chain of the previous archive is then retired, see
+     * {@link FileStore#retire(int[])}. An archive of size zero owns no blocks,
+     * the block its entry points at is released right away since no chunk is
+     * ever written to it.
      * @param src The source byte array.
      * @param id The archive id.
      * @param len The length of the source byte array.
-     * @param exists The archive is expected to already preexist.
      * @return If writing the file to this {@link FileIndex} was successful.
      */
-    private boolean put(byte src[], int id, int len, boolean exists) {
+    private boolean write(byte src[], int id, int len) {
+        int[] written = null;
+        int amountWritten = 0;
+        boolean linked = false;
         try {
-            int firstBlock;
-            if(exists) {
-                indexFile.seek(id * 6L);
-                int read;
-                for(int off = 0; off < 6; off += read) {
-                    read = indexFile.read(chunkBuffer, off, 6 - off);
-                    if(read == -1)
-                        return false;
-                }
-                firstBlock = ((chunkBuffer[3] & 0xff) << 16) + ((chunkBuffer[4] & 0xff) << 8) + (chunkBuffer[5] & 0xff);
-                if(firstBlock <= 0 || (long)firstBlock > mainFile.length() / 520L)
-                    return false;
-            } else {
-                firstBlock = (int)((mainFile.length() + 519L) / 520L);
-                if(firstBlock == 0)
-                    firstBlock = 1;
-            }
-            chunkBuffer[0] = (byte) (len >> 16);
-            chunkBuffer[1] = (byte) (len >> 8);
-            chunkBuffer[2] = (byte)  len;
-            chunkBuffer[3] = (byte) (firstBlock >> 16);
-            chunkBuffer[4] = (byte) (firstBlock >> 8);
-            chunkBuffer[5] = (byte)  firstBlock;
-            indexFile.seek(id * 6L);
-            indexFile.write(chunkBuffer, 0, 6);
+            if(id < 0 || id > 0xffff || len > 0xffffff)
+                return false;
+            int[] previous = chain(id, lookup(id));
+            ByteBuffer buffer = ByteBuffer.wrap(chunkBuffer);
+            written = new int[len == 0 ? 1 : (len + 511) / 512];
+            written[amountWritten++] = store.allocate();
+            int block = written[0];
             int archiveOffset = 0;
             for(int chunk = 0; archiveOffset < len; chunk++) {
+                int blockSize = len - archiveOffset;
+                if(blockSize > 512)
+                    blockSize = 512;
                 int nextBlock = 0;
-                if(exists) {
-                    mainFile.seek(firstBlock * 520L);
-                    int off;
-                    int read;
-                    for(off = 0; off < 8; off += read) {
-                        read = mainFile.read(chunkBuffer, off, 8 - off);
-                        if(read == -1)
-                            break;
-                    }
-                    if(off == 8) {
-                        int expectedArchive = ((chunkBuffer[0] & 0xff) << 8) + (chunkBuffer[1] & 0xff);
-                        int expectedChunk = ((chunkBuffer[2] & 0xff) << 8) + (chunkBuffer[3] & 0xff);
-                        nextBlock = ((chunkBuffer[4] & 0xff) << 16) + ((chunkBuffer[5] & 0xff) << 8) + (chunkBuffer[6] & 0xff);
-                        int expectedIndex = chunkBuffer[7] & 0xff;
-                        if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
-                            return false;
-                        if(nextBlock < 0 || (long)nextBlock > mainFile.length() / 520L)
-                            return false;
-                    }
+                if(len - archiveOffset > 512) {
+                    nextBlock = store.allocate();
+                    written[amountWritten++] = nextBlock;
                 }
-                if(nextBlock == 0) {
-                    exists = false;
-                    nextBlock = (int)((mainFile.length() + 519L) / 520L);
-                    if(nextBlock == 0)
-                        nextBlock++;
-                    if(nextBlock == firstBlock)
-                        nextBlock++;
-                }
-                if(len - archiveOffset <= 512)
-                    nextBlock = 0;
                 chunkBuffer[0] = (byte)(id >> 8);
                 chunkBuffer[1] = (byte) id;
                 chunkBuffer[2] = (byte)(chunk >> 8);
@@ -181,43 +1029,418 @@ public final class FileIndex {
                 chunkBuffer[5] = (byte)(nextBlock >> 8);
                 chunkBuffer[6] = (byte) nextBlock;
                 chunkBuffer[7] = (byte) indexId;
-                mainFile.seek(firstBlock * 520L);
-                mainFile.write(chunkBuffer, 0, 8);
-                int blockSize = len - archiveOffset;
-                if(blockSize > 512)
-                    blockSize = 512;
-                mainFile.write(src, archiveOffset, blockSize);
+                System.arraycopy(src, archiveOffset, chunkBuffer, 8, blockSize);
+                buffer.clear();
+                buffer.limit(blockSize + 8);
+                store.write(buffer, block * 520L);
                 archiveOffset += blockSize;
-                firstBlock = nextBlock;
+                block = nextBlock;
             }
+            linked = true;
+            writeEntry(id, len, written[0]);
+            if(len == 0)
+                store.release(written[0]);
+            store.retire(previous);
             return true;
         } catch(IOException ex) {
+            if(!linked) {
+                for(int i = 0; i < amountWritten; i++)
+                    store.release(written[i]);
+            }
             return false;
         }
     }
     
+    /**
+     * Links an archive that was written to new blocks by a stream into this
+     * {@link FileIndex}. The index entry is written and the chain of the
+     * previous archive is retired or, when this {@link FileIndex} was 
+     * created with {@link #JOURNAL}, the entry is staged in the journal.
+     * @param id The archive id.
+     * @param size The archive size.
+     * @param block The first block of the archive.
+     * @param checksum The CRC32 of the archive.
+     */
+    synchronized void link(int id, int size, int block, int checksum) throws IOException {
+        if(journal != null) {
+            journal.stage(indexId, id, size, block);
+            invalidate(id);
+            if(checksums != null)
+                checksums.update(id, checksum);
+            return;
+        }
+        int[] chain = chain(id, readEntry(id));
+        writeEntry(id, size, block);
+        invalidate(id);
+        if(checksums != null)
+            checksums.update(id, checksum);
+        store.retire(chain);
+    }
+    
+    /**
+     * Removes an archive that was written from the {@link ArchiveCache} of
+     * the {@link FileStore}.
+     * @param id The archive id.
+     */
+    private void invalidate(int id) {
+        ArchiveCache cache = store.archiveCache();
+        if(cache != null)
+            cache.invalidate(indexId, id);
+    }
+    
+    /**
+     * Updates the entry of an archive that was written in the
+     * {@link ChecksumTable} of this index. The table is kept in memory even
+     * if its file could not be written, the file is rewritten when this
+     * index is destroyed.
+     * @param id The archive id.
+     * @param src The written source byte array or null if the write failed,
+     *            the checksum is then recomputed from the stored archive.
+     * @param len The length of the archive.
+     */
+    private void updateChecksum(int id, byte[] src, int len) {
+        if(checksums == null)
+            return;
+        try {
+            if(src != null)
+                checksums.update(id, src, len);
+            else
+                checksums.refresh(id);
+        } catch(IOException ioex) {}
+    }
+    
+    /**
+     * Recomputes the checksum of an archive whose index entry was replayed
+     * from the journal.
+     * @param id The archive id.
+     */
+    void refreshChecksum(int id) {
+        updateChecksum(id, null, 0);
+    }
+    
+    /**
+     * Gets the {@link ChecksumTable} of this index.
+     * @return The table or null if this {@link FileIndex} was not created
+     *         with {@link #CHECKSUMS}.
+     */
+    public ChecksumTable getChecksums() {
+        return checksums;
+    }
+    
+    /**
+     * Gets the id of this {@link FileIndex}.
+     * @return The index id.
+     */
+    int getIndexId() {
+        return indexId;
+    }
+    
+    /**
+     * Gets the {@link FileStore} that owns the main file of this index.
+     * @return The store.
+     */
+    FileStore getStore() {
+        return store;
+    }
+    
+    /**
+     * Writes an entry to the index file and to the cached index table.
+     * @param id The archive id.
+     * @param size The archive size.
+     * @param block The first block of the archive.
+     */
+    void writeEntry(int id, int size, int block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        buffer.put(0, (byte) (size >> 16));
+        buffer.put(1, (byte) (size >> 8));
+        buffer.put(2, (byte)  size);
+        buffer.put(3, (byte) (block >> 16));
+        buffer.put(4, (byte) (block >> 8));
+        buffer.put(5, (byte)  block);
+        synchronized(entryLock) {
+            entrySequence++;
+            try {
+                FileStore.writeFully(indexChannel, buffer, id * 6L);
+            } finally {
+                entrySequence++;
+            }
+            if((flags & CACHE_INDEX) != 0)
+                cacheEntry(id, size, block);
+        }
+    }
+    
+    /**
+     * Replaces every entry of the index file, the index file is truncated
+     * after the new entries and synchronized.
+     * @param sizes The archive sizes by archive id.
+     * @param blocks The first blocks by archive id.
+     */
+    synchronized void replaceEntries(int[] sizes, int[] blocks) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(sizes.length * 6);
+        for(int id = 0; id < sizes.length; id++) {
+            buffer.put((byte) (sizes[id] >> 16));
+            buffer.put((byte) (sizes[id] >> 8));
+            buffer.put((byte)  sizes[id]);
+            buffer.put((byte) (blocks[id] >> 16));
+            buffer.put((byte) (blocks[id] >> 8));
+            buffer.put((byte)  blocks[id]);
+        }
+        buffer.flip();
+        synchronized(entryLock) {
+            entrySequence++;
+            try {
+                FileStore.writeFully(indexChannel, buffer, 0L);
+                indexChannel.truncate(sizes.length * 6L);
+            } finally {
+                entrySequence++;
+            }
+            indexChannel.force(false);
+            if((flags & CACHE_INDEX) != 0) {
+                AtomicLongArray table = new AtomicLongArray(sizes.length);
+                for(int id = 0; id < sizes.length; id++)
+                    table.set(id, (long) sizes[id] << 24 | blocks[id]);
+                cachedEntries = table;
+            }
+            if((flags & MAP_FILES) != 0)
+                remapIndex();
+        }
+        ArchiveCache cache = store.archiveCache();
+        if(cache != null)
+            cache.clear();
+        if(checksums != null)
+            checksums.rebuild();
+    }
+    
+    /**
+     * Forces the index file to be written to the storage device.
+     */
+    void force() throws IOException {
+        indexChannel.force(false);
+    }
+    
+    /**
+     * Lays out the chunks of an archive in consecutive blocks.
+     * @param dst The destination byte array, the chunk for the first block
+     *            is written at the destination offset.
+     * @param off The destination offset.
+     * @param src The source byte array.
+     * @param id The archive id.
+     * @param len The length of the archive.
+     * @param firstBlock The block of the first chunk.
+     * @return The amount of bytes laid out, the last chunk is not padded.
+     */
+    private int layout(byte[] dst, int off, byte[] src, int id, int len, int firstBlock) {
+        int start = off;
+        int archiveOffset = 0;
+        for(int chunk = 0; archiveOffset < len; chunk++) {
+            int blockSize = len - archiveOffset;
+            if(blockSize > 512)
+                blockSize = 512;
+            int nextBlock = len - archiveOffset <= 512 ? 0 : firstBlock + chunk + 1;
+            dst[off++] = (byte)(id >> 8);
+            dst[off++] = (byte) id;
+            dst[off++] = (byte)(chunk >> 8);
+            dst[off++] = (byte) chunk;
+            dst[off++] = (byte)(nextBlock >> 16);
+            dst[off++] = (byte)(nextBlock >> 8);
+            dst[off++] = (byte) nextBlock;
+            dst[off++] = (byte) indexId;
+            System.arraycopy(src, archiveOffset, dst, off, blockSize);
+            off += blockSize;
+            archiveOffset += blockSize;
+        }
+        return off - start;
+    }
+    
+    /**
+     * Moves an archive into consecutive blocks. The archive is moved if its
+     * chain is fragmented or if there is a free run of blocks for it before
+     * its first block. The archive is copied before the index entry is 
+     * updated so readers keep reading the old chain until then, the old chain
+     * is then retired, see {@link FileStore#retire(int[])}. With a journal
+     * the copy and the index entry are both synchronized to disk before the
+     * old chain is retired, so the entry never points at blocks that a later
+     * commit reused.
+     * @param id The archive id.
+     * @return The blocks of the old chain which were retired or null if the
+     *         archive was not moved.
+     */
+    synchronized int[] relocate(int id) throws IOException {
+        if(journal != null && journal.pending(indexId, id) != -1L)
+            return null;
+        int[] chain = chain(id);
+        if(chain == null || chain.length == 0)
+            return null;
+        int size = (int) (lookup(id) >>> 24);
+        if(chain.length != (size + 511) / 512)
+            return null;
+        boolean fragmented = false;
+        for(int i = 1; i < chain.length; i++) {
+            if(chain[i] != chain[i - 1] + 1) {
+                fragmented = true;
+                break;
+            }
+        }
+        int firstBlock = store.allocateRun(chain.length, fragmented ? -1 : chain[0]);
+        if(firstBlock == -1)
+            return null;
+        byte[] src = get(id);
+        if(src == null) {
+            for(int i = 0; i < chain.length; i++)
+                store.release(firstBlock + i);
+            return null;
+        }
+        byte[] dst = new byte[chain.length * 520];
+        int length = layout(dst, 0, src, id, size, firstBlock);
+        store.write(ByteBuffer.wrap(dst, 0, length), 520L * firstBlock);
+        if(journal != null)
+            store.force();
+        writeEntry(id, size, firstBlock);
+        if(journal != null)
+            force();
+        store.retire(chain);
+        return chain;
+    }
+    
+    /**
+     * Walks the chunk chain of an archive without reading the payloads.
+     * @param id The archive id.
+     * @return The blocks of the chain up to the first chunk that fails 
+     *         validation or null if the archive has no entry.
+     */
+    int[] chain(int id) throws IOException {
+        return chain(id, lookup(id));
+    }
+    
+    /**
+     * Walks the chunk chain of an index entry without reading the payloads.
+     * @param id The archive id.
+     * @param entry The index entry.
+     * @return The blocks of the chain up to the first chunk that fails 
+     *         validation or null if the entry does not exist.
+     */
+    int[] chain(int id, long entry) throws IOException {
+        if(entry == -1L)
+            return null;
+        int size = (int) (entry >>> 24);
+        int block = (int) entry & 0xffffff;
+        int amountChunks = (size + 511) / 512;
+        int[] blocks = new int[amountChunks];
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        int chunk = 0;
+        for(; chunk < amountChunks && block != 0; chunk++) {
+            buffer.clear();
+            if(!store.read(buffer, 520L * block))
+                break;
+            int expectedArchive = ((buffer.get(0) & 0xff) << 8) + (buffer.get(1) & 0xff);
+            int expectedChunk = ((buffer.get(2) & 0xff) << 8) + (buffer.get(3) & 0xff);
+            int nextBlock = ((buffer.get(4) & 0xff) << 16) + ((buffer.get(5) & 0xff) << 8) + (buffer.get(6) & 0xff);
+            int expectedIndex = buffer.get(7) & 0xff;
+            if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
+                break;
+            blocks[chunk] = block;
+            block = nextBlock;
+        }
+        return chunk == amountChunks ? blocks : Arrays.copyOf(blocks, chunk);
+    }
+    
+    /**
+     * Gets the amount of entries in the index file.
+     * @return The amount of entries.
+     */
+    int amountEntries() throws IOException {
+        if((flags & CACHE_INDEX) != 0)
+            return cachedEntries.length();
+        return (int) (indexChannel.size() / 6L);
+    }
+    
     /**
      * Destroys this {@link FileIndex}.
      * This {@link FileIndex} will not be usable after it is destroyed.
      */
     public void destroy() {
+        if(checksums != null)
+            checksums.destroy();
         try {
-            mainFile.close();
             indexFile.close();
         } catch(IOException ioex) {}
+        if(ownsStore)
+            store.destroy();
         chunkBuffer = null;
+        indexBuffer = null;
+        cachedEntries = null;
     }
     
     /**
-     * Constructs a new {@link FileIndex};
+     * Constructs a new {@link FileIndex}; the index will use a {@link FileStore}
+     * of its own so indexes that share the main file and are written to at 
+     * the same time should be opened through a single {@link FileStore}.
      * @param indexId The index id.
      * @param mainChannel The {@link RandomAccessFile} for the main index file.
      * @param indexChannel The {@link RandomAccessFile} for the index file.
      */
     public FileIndex(int indexId, RandomAccessFile mainChannel, RandomAccessFile indexChannel) {
         this.indexId = indexId;
-        this.mainFile = mainChannel;
+        this.store = new FileStore(mainChannel);
+        this.ownsStore = true;
         this.indexFile = indexChannel;
+        this.indexChannel = indexChannel.getChannel();
         chunkBuffer = new byte[520];
     }
+    
+    /**
+     * Constructs a new {@link FileIndex}; the index will use a {@link FileStore}
+     * of its own, see {@link #FileIndex(int, RandomAccessFile, RandomAccessFile)}.
+     * @param indexId The index id.
+     * @param mainChannel The {@link RandomAccessFile} for the main index file.
+     * @param indexChannel The {@link RandomAccessFile} for the index file.
+     * @param flags The option flags, see {@link #MAP_FILES} and 
+     *              {@link #CACHE_INDEX}.
+     */
+    public FileIndex(int indexId, RandomAccessFile mainChannel, RandomAccessFile indexChannel, int flags) throws IOException {
+        this(indexId, mainChannel, indexChannel);
+        initialize(flags);
+    }
+    
+    /**
+     * Constructs a new {@link FileIndex} that shares the main file of a
+     * {@link FileStore}, see {@link FileStore#openIndex(int, RandomAccessFile, int)}.
+     * @param indexId The index id.
+     * @param store The {@link FileStore} that owns the main file.
+     * @param indexChannel The {@link RandomAccessFile} for the index file.
+     * @param flags The option flags.
+     */
+    FileIndex(int indexId, FileStore store, RandomAccessFile indexChannel, int flags) throws IOException {
+        this.indexId = indexId;
+        this.store = store;
+        this.indexFile = indexChannel;
+        this.indexChannel = indexChannel.getChannel();
+        chunkBuffer = new byte[520];
+        initialize(flags);
+    }
+    
+    /**
+     * Applies the option flags for this {@link FileIndex}.
+     * @param flags The option flags.
+     */
+    private void initialize(int flags) throws IOException {
+        this.flags = flags;
+        if((flags & JOURNAL) != 0) {
+            journal = store.journal();
+            if(journal == null)
+                throw new IOException("the store was not opened with a journal");
+        }
+        if((flags & MAP_FILES) != 0) {
+            store.remap();
+            remapIndex();
+        }
+        if((flags & CACHE_INDEX) != 0)
+            loadIndex();
+        if((flags & CHECKSUMS) != 0) {
+            File file = store.checksumFile(indexId);
+            if(file == null)
+                throw new IOException("the store was not opened from a directory");
+            checksums = new ChecksumTable(this, file);
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package org.runetekk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * FileIndexInputStream.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * An {@link InputStream} over the chunk chain of a single archive. Chunks are
+ * read and validated one at a time as the bytes are consumed, so an archive
+ * can be fed into a decompressor without ever holding all of it in memory.
+ * A chunk that fails validation is reported with an {@link IOException} when
+ * the stream reaches it. The stream holds a read of the {@link FileStore}
+ * until it is closed or its last chunk is read.
+ */
+final class FileIndexInputStream extends InputStream {
+    
+    /**
+     * The {@link FileStore} to read the chunks from.
+     */
+    private FileStore store;
+    
+    /**
+     * The epoch of the read held by this stream or null once it exited.
+     */
+    private FileStore.ReadEpoch epoch;
+    
+    /**
+     * The id of the index the archive belongs to.
+     */
+    private int indexId;
+    
+    /**
+     * The archive id.
+     */
+    private int id;
+    
+    /**
+     * The archive size.
+     */
+    private int size;
+    
+    /**
+     * The block of the next chunk to read.
+     */
+    private int block;
+    
+    /**
+     * The number of the next chunk to read.
+     */
+    private int chunk;
+    
+    /**
+     * The offset in the archive of the first byte after the read chunks.
+     */
+    private int archiveOffset;
+    
+    /**
+     * The buffer holding the last read chunk, positioned at the next byte
+     * to consume.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(520);
+    
+    /**
+     * If this stream was closed.
+     */
+    private boolean closed;
+    
+    /**
+     * Reads the next chunk of the archive into the buffer.
+     * @return If a chunk was read, false if the end of the archive was reached.
+     */
+    private boolean fill() throws IOException {
+        if(closed)
+            throw new IOException("stream closed");
+        if(archiveOffset >= size)
+            return false;
+        if(block <= 0)
+            throw new IOException("archive " + id + " chain ends at chunk " + chunk);
+        int blockSize = size - archiveOffset;
+        if(blockSize > 512)
+            blockSize = 512;
+        buffer.clear();
+        buffer.limit(blockSize + 8);
+        if(!store.read(buffer, 520L * block))
+            throw new IOException("archive " + id + " chunk " + chunk + " is beyond the main file");
+        int expectedArchive = ((buffer.get(0) & 0xff) << 8) + (buffer.get(1) & 0xff);
+        int expectedChunk = ((buffer.get(2) & 0xff) << 8) + (buffer.get(3) & 0xff);
+        int nextBlock = ((buffer.get(4) & 0xff) << 16) + ((buffer.get(5) & 0xff) << 8) + (buffer.get(6) & 0xff);
+        int expectedIndex = buffer.get(7) & 0xff;
+        if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId)
+            throw new IOException("archive " + id + " chunk " + chunk + " failed validation");
+        buffer.position(8);
+        archiveOffset += blockSize;
+        block = nextBlock;
+        chunk++;
+        if(archiveOffset >= size)
+            exitRead();
+        return true;
+    }
+    
+    /**
+     * Exits the read held by this stream once no more chunks will be read.
+     */
+    private void exitRead() {
+        if(epoch != null) {
+            store.exitRead(epoch);
+            epoch = null;
+        }
+    }
+    
+    /**
+     * Reads the next byte of the archive.
+     * @return The byte or -1 if the end of the archive was reached.
+     */
+    @Override
+    public int read() throws IOException {
+        if(!buffer.hasRemaining() && !fill())
+            return -1;
+        return buffer.get() & 0xff;
+    }
+    
+    /**
+     * Reads up to the specified amount of bytes of the archive, chunks are
+     * read until the amount is reached or the archive ends.
+     * @param dst The destination byte array.
+     * @param off The offset in the byte array.
+     * @param len The maximum amount of bytes to read.
+     * @return The amount of bytes read or -1 if the end of the archive was
+     *         reached.
+     */
+    @Override
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > dst.length - off)
+            throw new IndexOutOfBoundsException();
+        if(len == 0)
+            return 0;
+        int read = 0;
+        while(read < len) {
+            if(!buffer.hasRemaining() && !fill())
+                break;
+            int amount = buffer.remaining();
+            if(amount > len - read)
+                amount = len - read;
+            buffer.get(dst, off + read, amount);
+            read += amount;
+        }
+        return read == 0 ? -1 : read;
+    }
+    
+    /**
+     * Skips bytes of the archive, the skipped chunks are still validated.
+     * @param n The amount of bytes to skip.
+     * @return The amount of bytes skipped.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0L;
+        while(skipped < n) {
+            if(!buffer.hasRemaining() && !fill())
+                break;
+            int amount = buffer.remaining();
+            if(amount > n - skipped)
+                amount = (int) (n - skipped);
+            buffer.position(buffer.position() + amount);
+            skipped += amount;
+        }
+        return skipped;
+    }
+    
+    /**
+     * Gets the amount of bytes of the archive left to read.
+     * @return The amount of bytes.
+     */
+    @Override
+    public int available() throws IOException {
+        if(closed)
+            return 0;
+        return size - archiveOffset + buffer.remaining();
+    }
+    
+    /**
+     * Closes this stream.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        buffer.limit(0);
+        exitRead();
+    }
+    
+    /**
+     * Constructs a new {@link FileIndexInputStream};
+     * @param store The {@link FileStore} to read the chunks from.
+     * @param epoch The epoch of the read the stream holds, the stream exits
+     *              it once it is done.
+     * @param indexId The id of the index the archive belongs to.
+     * @param id The archive id.
+     * @param size The archive size.
+     * @param block The first block of the archive.
+     */
+    FileIndexInputStream(FileStore store, FileStore.ReadEpoch epoch, int indexId, int id, int size, int block) {
+        this.store = store;
+        this.epoch = epoch;
+        this.indexId = indexId;
+        this.id = id;
+        this.size = size;
+        this.block = block;
+        buffer.limit(0);
+        if(size == 0)
+            exitRead();
+    }
+}
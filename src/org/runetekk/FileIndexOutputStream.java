@@ -0,0 +1,204 @@
+package org.runetekk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * FileIndexOutputStream.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * An {@link OutputStream} that writes a single archive without knowing its
+ * length up front. Only the chunk being filled is held in memory, each full
+ * chunk is linked to a newly reserved block and written as soon as the next
+ * byte arrives. The archive is always written to new blocks and only replaces
+ * the previous archive when the stream is closed, at which point the index
+ * entry is written or, for a journaled index, staged in the journal. An
+ * archive can not be larger than the 24 bit size field of an index entry.
+ */
+final class FileIndexOutputStream extends OutputStream {
+    
+    /**
+     * The maximum size of an archive.
+     */
+    private static final int MAX_SIZE = 0xffffff;
+    
+    /**
+     * The {@link FileIndex} the archive is written to.
+     */
+    private FileIndex index;
+    
+    /**
+     * The {@link FileStore} to write the chunks to.
+     */
+    private FileStore store;
+    
+    /**
+     * The id of the index the archive belongs to.
+     */
+    private int indexId;
+    
+    /**
+     * The archive id.
+     */
+    private int id;
+    
+    /**
+     * The amount of bytes written to the archive.
+     */
+    private int size;
+    
+    /**
+     * The number of the chunk being filled.
+     */
+    private int chunk;
+    
+    /**
+     * The blocks reserved for the archive, the last one is the block of the
+     * chunk being filled.
+     */
+    private int[] blocks = new int[16];
+    
+    /**
+     * The buffer holding the header and payload of the chunk being filled.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(520);
+    
+    /**
+     * The CRC32 of the bytes written so far.
+     */
+    private CRC32 crc = new CRC32();
+    
+    /**
+     * If this stream was closed.
+     */
+    private boolean closed;
+    
+    /**
+     * Writes the chunk being filled to its block.
+     * @param nextBlock The block of the next chunk or zero if this is the
+     *                  last chunk.
+     */
+    private void flush(int nextBlock) throws IOException {
+        int block = blocks[chunk];
+        buffer.put(0, (byte) (id >> 8));
+        buffer.put(1, (byte) id);
+        buffer.put(2, (byte) (chunk >> 8));
+        buffer.put(3, (byte) chunk);
+        buffer.put(4, (byte) (nextBlock >> 16));
+        buffer.put(5, (byte) (nextBlock >> 8));
+        buffer.put(6, (byte) nextBlock);
+        buffer.put(7, (byte) indexId);
+        buffer.flip();
+        store.write(buffer, 520L * block);
+        buffer.clear();
+        buffer.position(8);
+    }
+    
+    /**
+     * Reserves the block for the next chunk and writes the full chunk.
+     */
+    private void advance() throws IOException {
+        int nextBlock = store.reserve();
+        if(chunk + 1 >= blocks.length)
+            blocks = Arrays.copyOf(blocks, blocks.length << 1);
+        blocks[chunk + 1] = nextBlock;
+        flush(nextBlock);
+        chunk++;
+    }
+    
+    /**
+     * Writes a single byte to the archive.
+     * @param b The byte.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    /**
+     * Writes bytes to the archive, every chunk that is filled is written to
+     * the main file once more bytes follow it.
+     * @param src The source byte array.
+     * @param off The offset in the byte array.
+     * @param len The amount of bytes to write.
+     */
+    @Override
+    public void write(byte[] src, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > src.length - off)
+            throw new IndexOutOfBoundsException();
+        if(closed)
+            throw new IOException("stream closed");
+        if(len > MAX_SIZE - size) {
+            abort();
+            throw new IOException("archive " + id + " exceeds the maximum size of " + MAX_SIZE + " bytes");
+        }
+        try {
+            while(len > 0) {
+                if(!buffer.hasRemaining())
+                    advance();
+                int amount = buffer.remaining();
+                if(amount > len)
+                    amount = len;
+                buffer.put(src, off, amount);
+                crc.update(src, off, amount);
+                off += amount;
+                len -= amount;
+                size += amount;
+            }
+        } catch(IOException ioex) {
+            abort();
+            throw ioex;
+        }
+    }
+    
+    /**
+     * Writes the last chunk and links the archive into the index, replacing
+     * the previous archive with the same id. The block of an empty archive is
+     * released since an archive of size zero owns no blocks.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        try {
+            flush(0);
+            index.link(id, size, blocks[0], (int) crc.getValue());
+        } catch(IOException ioex) {
+            abort();
+            throw ioex;
+        }
+        closed = true;
+        store.unreserve(blocks, chunk + 1, size == 0);
+    }
+    
+    /**
+     * Gives up the archive and releases its reserved blocks, the previous
+     * archive with the same id is left untouched.
+     */
+    private void abort() {
+        if(closed)
+            return;
+        closed = true;
+        store.unreserve(blocks, chunk + 1, true);
+    }
+    
+    /**
+     * Constructs a new {@link FileIndexOutputStream};
+     * @param index The {@link FileIndex} the archive is written to.
+     * @param store The {@link FileStore} to write the chunks to.
+     * @param indexId The id of the index the archive belongs to.
+     * @param id The archive id.
+     */
+    FileIndexOutputStream(FileIndex index, FileStore store, int indexId, int id) throws IOException {
+        this.index = index;
+        this.store = store;
+        this.indexId = indexId;
+        this.id = id;
+        blocks[0] = store.reserve();
+        buffer.position(8);
+    }
+}
@@ -0,0 +1,230 @@
+package org.runetekk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * FileJournal.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * The write-ahead journal of a {@link FileStore}. Archives written to an
+ * index that was opened with {@link FileIndex#JOURNAL} are always written to
+ * newly allocated blocks and their index entries are staged in the journal
+ * instead of being written to the index file. A commit writes every staged
+ * entry of every index to the journal with a single synchronized write and
+ * only then updates the index files, so on open a batch is either replayed
+ * in full or, if its journal record was not completely written, none of its
+ * entries ever reached the index files.
+ */
+final class FileJournal {
+    
+    /**
+     * The magic number at the start of a journal record.
+     */
+    private static final int MAGIC = 0x4a524e4c;
+    
+    /**
+     * The {@link FileStore} this journal belongs to.
+     */
+    private FileStore store;
+    
+    /**
+     * The {@link RandomAccessFile} for the journal file.
+     */
+    private RandomAccessFile file;
+    
+    /**
+     * The {@link FileChannel} of the journal file.
+     */
+    private FileChannel channel;
+    
+    /**
+     * The staged index entries keyed by the index id in the upper 32 bits
+     * and the archive id in the lower 32 bits. Each entry holds the archive
+     * size in the upper 24 bits and the first block in the lower 24 bits.
+     */
+    private final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+    
+    /**
+     * Gets a staged index entry.
+     * @param indexId The index id.
+     * @param id The archive id.
+     * @return The staged entry or -1 if there is no staged entry.
+     */
+    long pending(int indexId, int id) {
+        if(pending.isEmpty())
+            return -1L;
+        Long entry = pending.get((long) indexId << 32 | id);
+        return entry == null ? -1L : entry;
+    }
+    
+    /**
+     * Stages an index entry for the next commit. The blocks of an entry that
+     * was staged for the same archive are retired since they were never
+     * committed, see {@link FileStore#retire(int[])}.
+     * @param indexId The index id.
+     * @param id The archive id.
+     * @param size The archive size.
+     * @param block The first block of the archive.
+     */
+    synchronized void stage(int indexId, int id, int size, int block) throws IOException {
+        Long previous = pending.put((long) indexId << 32 | id, (long) size << 24 | block);
+        if(previous != null)
+            store.retire(blocks(indexId, id, previous));
+    }
+    
+    /**
+     * Commits all the staged entries. The archive data is synchronized to
+     * disk, then the entries are written to the journal and synchronized and
+     * then the entries are written to the index files. The journal is cleared
+     * once the index files are synchronized and the chains of the replaced
+     * entries are retired.
+     */
+    synchronized void commit() throws IOException {
+        if(pending.isEmpty())
+            return;
+        store.force();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.writeInt(MAGIC);
+        os.writeInt(pending.size());
+        ArrayList<long[]> entries = new ArrayList<long[]>(pending.size());
+        for(Map.Entry<Long, Long> entry : pending.entrySet()) {
+            long key = entry.getKey();
+            long value = entry.getValue();
+            os.writeByte((int) (key >>> 32));
+            os.writeShort((int) key);
+            os.writeInt((int) (value >>> 24));
+            os.writeInt((int) value & 0xffffff);
+            entries.add(new long[] { key, value });
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        os.writeLong(crc.getValue());
+        os.flush();
+        channel.truncate(0L);
+        FileStore.writeFully(channel, ByteBuffer.wrap(bos.toByteArray()), 0L);
+        channel.force(false);
+        ArrayList<int[]> released = new ArrayList<int[]>();
+        boolean[] touched = new boolean[FileStore.MAX_INDEXES];
+        for(int i = 0; i < entries.size(); i++) {
+            long key = entries.get(i)[0];
+            long value = entries.get(i)[1];
+            FileIndex index = store.getIndex((int) (key >>> 32));
+            int id = (int) key;
+            int[] chain = index.chain(id, index.readEntry(id));
+            if(chain != null)
+                released.add(chain);
+            index.writeEntry(id, (int) (value >>> 24), (int) value & 0xffffff);
+            touched[(int) (key >>> 32)] = true;
+        }
+        for(int i = 0; i < touched.length; i++) {
+            if(touched[i])
+                store.getIndex(i).force();
+        }
+        channel.truncate(0L);
+        channel.force(false);
+        pending.clear();
+        for(int i = 0; i < released.size(); i++)
+            store.retire(released.get(i));
+    }
+    
+    /**
+     * Replays the last journal record if it was completely written, an
+     * incomplete record is discarded. Must be called after all the indexes
+     * have been opened and before any archive is written.
+     * @return If a record was replayed.
+     */
+    synchronized boolean recover() throws IOException {
+        long length = channel.size();
+        if(length == 0L)
+            return false;
+        boolean replayed = false;
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        if(length >= 16L && FileStore.readFully(channel, buffer, 0L)) {
+            int count = buffer.getInt(4);
+            if(buffer.getInt(0) == MAGIC && count >= 0 && length == 16L + count * 11L) {
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, (int) length - 8);
+                if(crc.getValue() == buffer.getLong((int) length - 8)) {
+                    boolean[] touched = new boolean[FileStore.MAX_INDEXES];
+                    for(int i = 0, position = 8; i < count; i++, position += 11) {
+                        int indexId = buffer.get(position) & 0xff;
+                        FileIndex index = store.getIndex(indexId);
+                        if(index == null)
+                            continue;
+                        int id = buffer.getShort(position + 1) & 0xffff;
+                        index.writeEntry(id, buffer.getInt(position + 3), buffer.getInt(position + 7));
+                        index.refreshChecksum(id);
+                        touched[indexId] = true;
+                    }
+                    for(int i = 0; i < touched.length; i++) {
+                        if(touched[i])
+                            store.getIndex(i).force();
+                    }
+                    replayed = true;
+                }
+            }
+        }
+        channel.truncate(0L);
+        channel.force(false);
+        return replayed;
+    }
+    
+    /**
+     * Gets the blocks of a staged entry. The chain of the entry is walked
+     * since archives written through a stream are not laid out in a single
+     * run of consecutive blocks. An entry of size zero owns no blocks, its
+     * block was released when the entry was staged.
+     * @param indexId The index id.
+     * @param id The archive id.
+     * @param entry The staged entry.
+     * @return The blocks of the entry.
+     */
+    private int[] blocks(int indexId, int id, long entry) throws IOException {
+        return store.getIndex(indexId).chain(id, entry);
+    }
+    
+    /**
+     * Marks the blocks of every staged entry as used.
+     * @param used The used blocks.
+     */
+    synchronized void mark(BitSet used) throws IOException {
+        for(Map.Entry<Long, Long> entry : pending.entrySet()) {
+            long key = entry.getKey();
+            int[] blocks = blocks((int) (key >>> 32), (int) key, entry.getValue());
+            for(int i = 0; i < blocks.length; i++)
+                used.set(blocks[i]);
+        }
+    }
+    
+    /**
+     * Destroys this {@link FileJournal}.
+     */
+    void destroy() {
+        try {
+            file.close();
+        } catch(IOException ioex) {}
+    }
+    
+    /**
+     * Constructs a new {@link FileJournal};
+     * @param store The {@link FileStore} the journal belongs to.
+     * @param file The {@link RandomAccessFile} for the journal file.
+     */
+    FileJournal(FileStore store, RandomAccessFile file) {
+        this.store = store;
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+}
@@ -0,0 +1,423 @@
+package org.runetekk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FileRecovery.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * Rebuilds lost or corrupt index files from the chunk headers in the main
+ * file of a {@link FileStore}. The main file is scanned by a number of worker
+ * threads, each reading its own range of blocks with large sequential reads,
+ * and the chain of every archive is then reconstructed from each block that
+ * holds the first chunk of an archive. A chain is only accepted if it is
+ * complete, which is when its last chunk does not point at a next block. The
+ * size of an archive is taken from a supplied size list when there is one
+ * and otherwise inferred from the length of the chain and the last non zero
+ * byte of its last chunk. An inferred size drops the trailing zero bytes of
+ * an archive and, since only the used part of the last block is written,
+ * includes the stale bytes left behind the archive when the block held a
+ * longer chunk before, so a size list should be supplied when there is one.
+ * When more than one complete chain is found for an archive, for example
+ * because the blocks of an older version were released but not overwritten
+ * yet, a chain none of whose blocks are free in the store is preferred. Since
+ * freed blocks are reused and compaction moves archives to lower blocks, the
+ * position of a chain says little about its age, so the chain that starts at
+ * the highest block is only chosen among chains that are equally preferred.
+ * The index files are rewritten and the free block map of the store is
+ * rebuilt. The store must not be written to while it is being recovered.
+ */
+public final class FileRecovery implements Runnable {
+    
+    /**
+     * The amount of blocks read from the main file at once.
+     */
+    private static final int SCAN_BLOCKS = 8192;
+    
+    /**
+     * The amount of blocks each worker takes at once while reconstructing.
+     */
+    private static final int BATCH_SIZE = 4096;
+    
+    /**
+     * The header of a block that holds no chunk.
+     */
+    private static final long EMPTY = -1L;
+    
+    /**
+     * The {@link FileStore} to recover.
+     */
+    private FileStore store;
+    
+    /**
+     * The ids of the indexes to rebuild.
+     */
+    private int[] indexIds;
+    
+    /**
+     * The amount of worker threads.
+     */
+    private int amountThreads;
+    
+    /**
+     * The supplied archive sizes by index id and archive id, a negative size
+     * or a missing list means the size is inferred.
+     */
+    private final int[][] sizes = new int[FileStore.MAX_INDEXES][];
+    
+    /**
+     * The length of the main file.
+     */
+    private long mainLength;
+    
+    /**
+     * The amount of blocks before the end of the main file.
+     */
+    private int amountBlocks;
+    
+    /**
+     * The chunk header of each block, the index id in the upper 8 bits, the
+     * archive id in the next 16 bits, the chunk in the next 16 bits and the
+     * next block in the lower 24 bits or {@link #EMPTY}.
+     */
+    private long[] headers;
+    
+    /**
+     * The length of the payload of each block up to its last non zero byte.
+     */
+    private char[] payloadLengths;
+    
+    /**
+     * The blocks that were free or reserved in the store when the pass
+     * started.
+     */
+    private BitSet unreferenced;
+    
+    /**
+     * The next batch of blocks to reconstruct chains from.
+     */
+    private AtomicInteger nextBatch;
+    
+    /**
+     * The complete chains found by the workers, each holding the index id and
+     * archive id, the first block, the amount of chunks, the payload length
+     * of the last chunk and one if none of the blocks were free or else zero.
+     */
+    private final ArrayList<int[]> chains = new ArrayList<int[]>();
+    
+    /**
+     * The amount of archives recovered by the last pass.
+     */
+    private volatile int archivesRecovered;
+    
+    /**
+     * The amount of recovered archives for which more than one complete chain
+     * was found by the last pass.
+     */
+    private volatile int archivesAmbiguous;
+    
+    /**
+     * The amount of archives with a supplied size for which no complete chain
+     * was found by the last pass.
+     */
+    private volatile int archivesMissing;
+    
+    /**
+     * The {@link IOException} that ended the last pass or null if the pass
+     * completed.
+     */
+    private volatile IOException failure;
+    
+    /**
+     * Supplies the archive sizes of an index, for example from a checksum
+     * table, so that archives do not have their size inferred and only a
+     * chain with the matching amount of chunks is accepted.
+     * @param indexId The index id.
+     * @param sizes The archive sizes by archive id, negative for unknown.
+     */
+    public void setSizes(int indexId, int[] sizes) {
+        this.sizes[indexId] = sizes;
+    }
+    
+    /**
+     * Runs a single recovery pass.
+     */
+    @Override
+    public void run() {
+        archivesRecovered = 0;
+        archivesAmbiguous = 0;
+        archivesMissing = 0;
+        failure = null;
+        chains.clear();
+        try {
+            mainLength = store.length();
+            amountBlocks = (int) ((mainLength + 519L) / 520L);
+            headers = new long[amountBlocks];
+            payloadLengths = new char[amountBlocks];
+            unreferenced = store.unreferencedBlocks();
+            if(amountBlocks > 0)
+                headers[0] = EMPTY;
+            runWorkers(true);
+            if(failure != null)
+                return;
+            nextBatch = new AtomicInteger();
+            runWorkers(false);
+            if(failure != null)
+                return;
+            rebuild();
+            store.rebuildFreeBlocks();
+        } catch(IOException ioex) {
+            failure = ioex;
+        } catch(InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            headers = null;
+            payloadLengths = null;
+            unreferenced = null;
+            chains.clear();
+        }
+    }
+    
+    /**
+     * Runs the worker threads for a phase of the pass and waits for them.
+     * @param scan Run the scan of the main file or else the reconstruction
+     *             of the chains.
+     */
+    private void runWorkers(final boolean scan) throws InterruptedException {
+        Thread[] workers = new Thread[amountThreads];
+        for(int i = 0; i < amountThreads; i++) {
+            final int worker = i;
+            workers[i] = new Thread("FileRecovery-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        if(scan)
+                            scan(worker);
+                        else
+                            reconstruct();
+                    } catch(IOException ioex) {
+                        failure = ioex;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for(int i = 0; i < workers.length; i++)
+            workers[i].join();
+    }
+    
+    /**
+     * Scans the range of blocks of a worker and records their chunk headers.
+     * @param worker The worker.
+     */
+    private void scan(int worker) throws IOException {
+        int range = (amountBlocks + amountThreads - 1) / amountThreads;
+        int start = worker * range;
+        int end = start + range;
+        if(end > amountBlocks)
+            end = amountBlocks;
+        if(start < 1)
+            start = 1;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BLOCKS * 520);
+        for(int block = start; block < end; block += SCAN_BLOCKS) {
+            int amount = end - block;
+            if(amount > SCAN_BLOCKS)
+                amount = SCAN_BLOCKS;
+            long length = mainLength - 520L * block;
+            if(length > amount * 520L)
+                length = amount * 520L;
+            buffer.clear();
+            buffer.limit((int) length);
+            if(!store.read(buffer, 520L * block))
+                throw new IOException("main file truncated while scanning");
+            for(int i = 0; i < amount; i++) {
+                int off = i * 520;
+                int available = (int) length - off;
+                if(available > 520)
+                    available = 520;
+                if(available < 8) {
+                    headers[block + i] = EMPTY;
+                    continue;
+                }
+                long header = 0L;
+                for(int j = 0; j < 8; j++)
+                    header = header << 8 | (buffer.get(off + j) & 0xff);
+                int payloadLength = available - 8;
+                while(payloadLength > 0 && buffer.get(off + 7 + payloadLength) == 0)
+                    payloadLength--;
+                if(header == 0L && payloadLength == 0)
+                    header = EMPTY;
+                else
+                    header = (header & 0xffL) << 56 | header >>> 8;
+                headers[block + i] = header;
+                payloadLengths[block + i] = (char) payloadLength;
+            }
+        }
+    }
+    
+    /**
+     * Follows the chain from every block that holds the first chunk of an
+     * archive and records the complete chains.
+     */
+    private void reconstruct() {
+        ArrayList<int[]> found = new ArrayList<int[]>();
+        for(;;) {
+            int start = nextBatch.getAndIncrement() * BATCH_SIZE;
+            if(start >= amountBlocks)
+                break;
+            int end = start + BATCH_SIZE;
+            if(end > amountBlocks)
+                end = amountBlocks;
+            for(int block = start; block < end; block++) {
+                long header = headers[block];
+                if(header == EMPTY || (header >>> 24 & 0xffff) != 0)
+                    continue;
+                long archive = header >>> 40;
+                int last = block;
+                int amountChunks = 1;
+                boolean live = !unreferenced.get(block);
+                for(;;) {
+                    int next = (int) header & 0xffffff;
+                    if(next == 0)
+                        break;
+                    if(next >= amountBlocks || amountChunks > 0xffff) {
+                        amountChunks = 0;
+                        break;
+                    }
+                    header = headers[next];
+                    if(header == EMPTY || header >>> 40 != archive || (header >>> 24 & 0xffff) != amountChunks) {
+                        amountChunks = 0;
+                        break;
+                    }
+                    last = next;
+                    amountChunks++;
+                    if(unreferenced.get(next))
+                        live = false;
+                }
+                if(amountChunks > 0)
+                    found.add(new int[] { (int) archive, block, amountChunks, payloadLengths[last], live ? 1 : 0 });
+            }
+        }
+        synchronized(chains) {
+            chains.addAll(found);
+        }
+    }
+    
+    /**
+     * Chooses a chain for every archive of the indexes to rebuild and
+     * rewrites their index files.
+     */
+    private void rebuild() throws IOException {
+        int[][] found = chains.toArray(new int[chains.size()][]);
+        Arrays.sort(found, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                if(a[0] != b[0])
+                    return a[0] < b[0] ? -1 : 1;
+                return a[1] < b[1] ? -1 : a[1] == b[1] ? 0 : 1;
+            }
+        });
+        for(int i = 0; i < indexIds.length; i++) {
+            int indexId = indexIds[i];
+            int[] supplied = sizes[indexId];
+            int amountEntries = supplied == null ? 0 : supplied.length;
+            int first = 0;
+            while(first < found.length && found[first][0] >>> 16 < indexId)
+                first++;
+            int last = first;
+            while(last < found.length && found[last][0] >>> 16 == indexId)
+                last++;
+            if(last > first && (found[last - 1][0] & 0xffff) + 1 > amountEntries)
+                amountEntries = (found[last - 1][0] & 0xffff) + 1;
+            int[] archiveSizes = new int[amountEntries];
+            int[] firstBlocks = new int[amountEntries];
+            boolean[] recovered = new boolean[amountEntries];
+            boolean[] live = new boolean[amountEntries];
+            for(int j = first; j < last; j++) {
+                int id = found[j][0] & 0xffff;
+                int size = (found[j][2] - 1) * 512 + found[j][3];
+                if(supplied != null && id < supplied.length && supplied[id] >= 0) {
+                    if((supplied[id] + 511) / 512 != found[j][2])
+                        continue;
+                    size = supplied[id];
+                }
+                if(recovered[id]) {
+                    archivesAmbiguous++;
+                    if(live[id] && found[j][4] == 0)
+                        continue;
+                } else
+                    archivesRecovered++;
+                recovered[id] = true;
+                live[id] = found[j][4] != 0;
+                archiveSizes[id] = size;
+                firstBlocks[id] = found[j][1];
+            }
+            if(supplied != null) {
+                for(int id = 0; id < supplied.length; id++) {
+                    if(supplied[id] > 0 && !recovered[id])
+                        archivesMissing++;
+                }
+            }
+            store.getIndex(indexId).replaceEntries(archiveSizes, firstBlocks);
+        }
+    }
+    
+    /**
+     * Gets the amount of archives recovered by the last pass.
+     * @return The amount of archives.
+     */
+    public int getArchivesRecovered() {
+        return archivesRecovered;
+    }
+    
+    /**
+     * Gets the amount of recovered archives for which more than one complete
+     * chain was found by the last pass, a chain without free blocks that
+     * starts at the highest block was chosen for them.
+     * @return The amount of archives.
+     */
+    public int getArchivesAmbiguous() {
+        return archivesAmbiguous;
+    }
+    
+    /**
+     * Gets the amount of archives with a supplied size for which no complete
+     * chain with the matching amount of chunks was found by the last pass.
+     * @return The amount of archives.
+     */
+    public int getArchivesMissing() {
+        return archivesMissing;
+    }
+    
+    /**
+     * Gets the {@link IOException} that ended the last pass.
+     * @return The exception or null if the pass completed.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+    
+    /**
+     * Constructs a new {@link FileRecovery};
+     * @param store The {@link FileStore} to recover.
+     * @param indexIds The ids of the indexes to rebuild, each has to be
+     *                 opened through the store.
+     * @param amountThreads The amount of worker threads.
+     */
+    public FileRecovery(FileStore store, int[] indexIds, int amountThreads) {
+        for(int i = 0; i < indexIds.length; i++) {
+            if(store.getIndex(indexIds[i]) == null)
+                throw new IllegalArgumentException("index " + indexIds[i] + " is not open");
+        }
+        this.store = store;
+        this.indexIds = indexIds.clone();
+        this.amountThreads = amountThreads;
+    }
+}
@@ -0,0 +1,292 @@
+package org.runetekk;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * FileScheduler.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * A bounded I/O executor for the asynchronous requests of a {@link FileStore}.
+ * Queued reads are not served in the order they were submitted, instead the
+ * workers sweep across the main file and always take the queued read with
+ * the lowest position at or after the last served position, wrapping back to
+ * the start of the file once no such read is left. This keeps the distance
+ * between consecutive reads short when the queue is deep. The position of a
+ * read is looked up by a worker after it is submitted so submitting never
+ * waits on an index file. Writes are served one at a time in the order they
+ * were submitted, so of several queued writes of an archive the last one is
+ * always the one that stays.
+ */
+public final class FileScheduler {
+    
+    /**
+     * The order of the queued requests, by position and then by the order
+     * the requests were submitted in.
+     */
+    private static final Comparator<Request> ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            if(a.position != b.position)
+                return a.position < b.position ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+    
+    /**
+     * A queued request.
+     */
+    private static final class Request {
+        
+        /**
+         * The position in the main file the request starts reading at.
+         */
+        private long position;
+        
+        /**
+         * The sequence number the request was submitted with.
+         */
+        private long sequence;
+        
+        /**
+         * The work for the request.
+         */
+        private Runnable work;
+        
+        /**
+         * The index of the archive that is read or null if the request is a
+         * write.
+         */
+        private FileIndex index;
+        
+        /**
+         * The id of the archive that is read.
+         */
+        private int id;
+        
+        /**
+         * Constructs a new {@link Request};
+         * @param position The position in the main file.
+         * @param sequence The sequence number.
+         * @param work The work for the request.
+         */
+        private Request(long position, long sequence, Runnable work) {
+            this.position = position;
+            this.sequence = sequence;
+            this.work = work;
+        }
+    }
+    
+    /**
+     * The queued reads whose position was looked up.
+     */
+    private final TreeSet<Request> queue = new TreeSet<Request>(ORDER);
+    
+    /**
+     * The queued reads whose position was not looked up yet.
+     */
+    private final ArrayDeque<Request> unresolved = new ArrayDeque<Request>();
+    
+    /**
+     * The queued writes in the order they were submitted.
+     */
+    private final ArrayDeque<Request> writes = new ArrayDeque<Request>();
+    
+    /**
+     * The maximum amount of queued requests.
+     */
+    private int capacity;
+    
+    /**
+     * The amount of queued requests, including the reads whose position is
+     * being looked up.
+     */
+    private int amountQueued;
+    
+    /**
+     * If a write is being served.
+     */
+    private boolean writing;
+    
+    /**
+     * The sequence number for the next submitted request.
+     */
+    private long sequence;
+    
+    /**
+     * The position of the last served request.
+     */
+    private long head;
+    
+    /**
+     * If this scheduler was shut down.
+     */
+    private boolean shutdown;
+    
+    /**
+     * The worker threads.
+     */
+    private Thread[] workers;
+    
+    /**
+     * Submits a read to this scheduler, the position of the read is looked
+     * up by a worker, see {@link FileIndex#position(int)}.
+     * @param index The index of the archive.
+     * @param id The archive id.
+     * @param work The work for the request.
+     * @return If the request was queued, false if the queue is full or the
+     *         scheduler was shut down.
+     */
+    synchronized boolean submitRead(FileIndex index, int id, Runnable work) {
+        if(shutdown || amountQueued >= capacity)
+            return false;
+        Request request = new Request(0L, sequence++, work);
+        request.index = index;
+        request.id = id;
+        unresolved.add(request);
+        amountQueued++;
+        notify();
+        return true;
+    }
+    
+    /**
+     * Submits a write to this scheduler.
+     * @param work The work for the request.
+     * @return If the request was queued, false if the queue is full or the
+     *         scheduler was shut down.
+     */
+    synchronized boolean submitWrite(Runnable work) {
+        if(shutdown || amountQueued >= capacity)
+            return false;
+        writes.add(new Request(0L, sequence++, work));
+        amountQueued++;
+        notify();
+        return true;
+    }
+    
+    /**
+     * Serves requests until the scheduler is shut down and no request is
+     * left that this worker could take.
+     */
+    private void serve() throws InterruptedException {
+        for(;;) {
+            Request request = null;
+            Request[] batch = null;
+            synchronized(this) {
+                for(;;) {
+                    if(!writing && !writes.isEmpty()) {
+                        writing = true;
+                        request = writes.poll();
+                        amountQueued--;
+                        break;
+                    }
+                    if(!unresolved.isEmpty()) {
+                        batch = unresolved.toArray(new Request[unresolved.size()]);
+                        unresolved.clear();
+                        break;
+                    }
+                    if(!queue.isEmpty()) {
+                        request = queue.ceiling(new Request(head, Long.MIN_VALUE, null));
+                        if(request == null)
+                            request = queue.first();
+                        queue.remove(request);
+                        head = request.position;
+                        amountQueued--;
+                        break;
+                    }
+                    if(shutdown)
+                        return;
+                    wait();
+                }
+            }
+            if(batch != null) {
+                resolve(batch);
+                continue;
+            }
+            try {
+                request.work.run();
+            } catch(RuntimeException rex) {}
+            if(request.index == null) {
+                synchronized(this) {
+                    writing = false;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Looks up the positions of queued reads and queues them by position.
+     * @param batch The reads.
+     */
+    private void resolve(Request[] batch) {
+        for(int i = 0; i < batch.length; i++) {
+            try {
+                batch[i].position = batch[i].index.position(batch[i].id);
+            } catch(RuntimeException rex) {}
+        }
+        synchronized(this) {
+            for(int i = 0; i < batch.length; i++)
+                queue.add(batch[i]);
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Gets the amount of queued requests that are not being served yet.
+     * @return The queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return amountQueued;
+    }
+    
+    /**
+     * Gets the maximum amount of queued requests.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Shuts this scheduler down. No new requests are accepted, the queued
+     * requests are served and then the workers exit.
+     */
+    void shutdown() {
+        synchronized(this) {
+            shutdown = true;
+            notifyAll();
+        }
+        for(int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch(InterruptedException iex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Constructs a new {@link FileScheduler};
+     * @param amountThreads The amount of worker threads.
+     * @param capacity The maximum amount of queued requests.
+     */
+    FileScheduler(int amountThreads, int capacity) {
+        this.capacity = capacity;
+        workers = new Thread[amountThreads];
+        for(int i = 0; i < amountThreads; i++) {
+            workers[i] = new Thread("FileScheduler-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        serve();
+                    } catch(InterruptedException iex) {}
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+}
@@ -0,0 +1,1036 @@
+package org.runetekk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FileStore.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * The store owns the main file that is shared by every {@link FileIndex} of a
+ * cache. All the indexes opened through the same store take their new blocks
+ * from the store so that indexes can be written to at the same time without
+ * claiming the same block. Blocks that are no longer referenced by any
+ * archive are kept in a free block map and are reused before the main file
+ * is extended. The blocks of a replaced archive are retired rather than
+ * released, they are only released once every read that could still be
+ * walking them has finished.
+ */
+public final class FileStore {
+    
+    /**
+     * An epoch of reads, see {@link FileStore#enterRead()}. The blocks that
+     * are retired while an epoch is the current epoch are released once it
+     * and every earlier epoch have no reads left.
+     */
+    static final class ReadEpoch {
+        
+        /**
+         * The amount of reads that entered this epoch and did not exit yet,
+         * plus one for as long as this is the current epoch.
+         */
+        private final AtomicInteger readers = new AtomicInteger(1);
+        
+        /**
+         * The blocks that were retired when this epoch ended.
+         */
+        private int[] retired;
+        
+        /**
+         * The epoch that followed this epoch.
+         */
+        private ReadEpoch next;
+    }
+    
+    /**
+     * The name of the main file in a cache directory.
+     */
+    public static final String MAIN_FILE_NAME = "main_file_cache.dat";
+    
+    /**
+     * The name prefix of the index files in a cache directory.
+     */
+    public static final String INDEX_FILE_PREFIX = "main_file_cache.idx";
+    
+    /**
+     * The name of the free block map file in a cache directory.
+     */
+    public static final String FREE_FILE_NAME = "main_file_cache.free";
+    
+    /**
+     * The name of the write-ahead journal file in a cache directory.
+     */
+    public static final String JOURNAL_FILE_NAME = "main_file_cache.journal";
+    
+    /**
+     * The prefix of the name of the checksum table file of each index.
+     */
+    public static final String CHECKSUM_FILE_PREFIX = "main_file_cache.crc";
+    
+    /**
+     * The maximum amount of indexes, the index id is stored as a single byte
+     * in the header of each chunk.
+     */
+    public static final int MAX_INDEXES = 256;
+    
+    /**
+     * The maximum block that can be referenced in an index entry or a chunk
+     * header.
+     */
+    public static final int MAX_BLOCK = 0xffffff;
+    
+    /**
+     * The amount of blocks in each mapped segment of the main file. A mapping
+     * cannot exceed 2GB so the main file is mapped in segments that are
+     * aligned so that a block never crosses a segment boundary.
+     */
+    static final int SEGMENT_BLOCKS = 1 << 21;
+    
+    /**
+     * The amount of bytes in each mapped segment of the main file.
+     */
+    static final long SEGMENT_SIZE = SEGMENT_BLOCKS * 520L;
+    
+    /**
+     * The amount of bytes the main file has to grow past the mapped part of
+     * the last segment before that segment is mapped again. Mappings are only
+     * unmapped once they are garbage collected so remapping the last segment
+     * every time the main file grows would pile up mappings.
+     */
+    static final long REMAP_SIZE = (1 << 14) * 520L;
+    
+    /**
+     * The {@link RandomAccessFile} that contains all the chunks for the archives
+     * in the file system.
+     */
+    private RandomAccessFile mainFile;
+    
+    /**
+     * The {@link FileChannel} of the main file.
+     */
+    private FileChannel mainChannel;
+    
+    /**
+     * The next block that will be handed out if the main file has not grown
+     * past it.
+     */
+    private long nextBlock;
+    
+    /**
+     * The blocks before the end of the main file that are not referenced by
+     * any archive and can be handed out again.
+     */
+    private BitSet freeBlocks = new BitSet();
+    
+    /**
+     * The block to start searching for a free block from, searching from the
+     * last handed out block keeps consecutive allocations together.
+     */
+    private int freeCursor = 1;
+    
+    /**
+     * The blocks that were handed out since the free block map started being
+     * rebuilt or null if the map is not being rebuilt.
+     */
+    private BitSet scanAllocated;
+    
+    /**
+     * The blocks that were released since the free block map started being
+     * rebuilt and were not handed out again or null if the map is not being
+     * rebuilt.
+     */
+    private BitSet scanReleased;
+    
+    /**
+     * The blocks that were handed out to archive streams and are not yet
+     * referenced by an index entry, these are never marked as free when the
+     * free block map is rebuilt.
+     */
+    private final BitSet reservedBlocks = new BitSet();
+    
+    /**
+     * The blocks that were retired and are not released yet, these are
+     * neither referenced nor free.
+     */
+    private final BitSet retiredBlocks = new BitSet();
+    
+    /**
+     * The current epoch of reads.
+     */
+    private volatile ReadEpoch readEpoch = new ReadEpoch();
+    
+    /**
+     * The oldest epoch whose retired blocks are not released yet.
+     */
+    private ReadEpoch oldestEpoch = readEpoch;
+    
+    /**
+     * The lock that guards ending epochs and releasing their blocks.
+     */
+    private final Object epochLock = new Object();
+    
+    /**
+     * The file that the free block map is saved to when this store is 
+     * destroyed or null if the map is not persisted.
+     */
+    private File freeFile;
+    
+    /**
+     * The cache directory or null if the store was not opened from a
+     * directory.
+     */
+    private File directory;
+    
+    /**
+     * The write-ahead journal or null if the store has no journal.
+     */
+    private FileJournal journal;
+    
+    /**
+     * The scheduler for the asynchronous requests or null if it has not
+     * been started yet.
+     */
+    private FileScheduler scheduler;
+    
+    /**
+     * The cache of blocks shared by every index or null if the blocks are
+     * not cached.
+     */
+    private volatile SectorCache sectorCache;
+    
+    /**
+     * The cache of archives read through the indexes or null if the archives
+     * are not cached.
+     */
+    private volatile ArchiveCache archiveCache;
+    
+    /**
+     * The indexes that were opened through this {@link FileStore}.
+     */
+    private final FileIndex[] indexes = new FileIndex[MAX_INDEXES];
+    
+    /**
+     * The mapped segments of the main file, mapped when first requested.
+     */
+    private volatile MappedByteBuffer[] mainSegments;
+    
+    /**
+     * The lock that guards remapping the main file.
+     */
+    private final Object mapLock = new Object();
+    
+    /**
+     * The lock that guards allocating blocks.
+     */
+    private final Object allocationLock = new Object();
+    
+    /**
+     * Opens the main file and every existing index file in a cache directory.
+     * If the indexes are opened with {@link FileIndex#JOURNAL} then the
+     * journal is opened as well and its last commit is replayed if it was
+     * interrupted. The free block map is loaded from the directory if it was
+     * saved when the main file was last closed, otherwise it is rebuilt by
+     * walking the chains of every archive. With a journal the map is not
+     * rebuilt so that opening takes time proportional to the journal, blocks
+     * orphaned by an interrupted write are then reclaimed by the next call
+     * to {@link #rebuildFreeBlocks()}. Indexes opened with
+     * {@link FileIndex#CHECKSUMS} load their checksum tables from the
+     * directory, the checksums of archives replayed from the journal are
+     * recomputed.
+     * @param directory The cache directory.
+     * @param flags The option flags for each {@link FileIndex}.
+     * @return The opened {@link FileStore}.
+     */
+    public static FileStore open(File directory, int flags) throws IOException {
+        FileStore store = new FileStore(new RandomAccessFile(new File(directory, MAIN_FILE_NAME), "rw"));
+        store.directory = directory;
+        if((flags & FileIndex.JOURNAL) != 0)
+            store.journal = new FileJournal(store, new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME), "rw"));
+        for(int i = 0; i < MAX_INDEXES; i++) {
+            File file = new File(directory, INDEX_FILE_PREFIX + i);
+            if(file.exists())
+                store.openIndex(i, new RandomAccessFile(file, "rw"), flags);
+        }
+        if(store.journal != null)
+            store.journal.recover();
+        store.freeFile = new File(directory, FREE_FILE_NAME);
+        if(!store.loadFreeBlocks() && store.journal == null)
+            store.rebuildFreeBlocks();
+        return store;
+    }
+    
+    /**
+     * Commits every archive written through the journal since the last
+     * commit. Either all of the archives are visible in the index files after
+     * the store is reopened or none of them are.
+     */
+    public void commit() throws IOException {
+        if(journal != null)
+            journal.commit();
+    }
+    
+    /**
+     * Starts the scheduler that serves the asynchronous requests of every
+     * index opened through this store.
+     * @param amountThreads The amount of worker threads.
+     * @param capacity The maximum amount of queued requests, requests are
+     *                 rejected once the queue is full.
+     * @return The started scheduler.
+     */
+    public synchronized FileScheduler startScheduler(int amountThreads, int capacity) {
+        if(scheduler != null)
+            throw new IllegalStateException("the scheduler was already started");
+        scheduler = new FileScheduler(amountThreads, capacity);
+        return scheduler;
+    }
+    
+    /**
+     * Gets the scheduler for the asynchronous requests, a scheduler with a
+     * worker for each processor is started if none was started yet.
+     * @return The scheduler.
+     */
+    public synchronized FileScheduler scheduler() {
+        if(scheduler == null)
+            scheduler = new FileScheduler(Runtime.getRuntime().availableProcessors(), 4096);
+        return scheduler;
+    }
+    
+    /**
+     * Starts caching the blocks read by every index opened through this
+     * store that was not created with {@link FileIndex#MAP_FILES}.
+     * @param amountSlots The amount of blocks to cache, each takes 520
+     *                    bytes of memory outside of the heap.
+     * @return The started cache.
+     */
+    public synchronized SectorCache startSectorCache(int amountSlots) {
+        if(sectorCache != null)
+            throw new IllegalStateException("the sector cache was already started");
+        sectorCache = new SectorCache(amountSlots);
+        return sectorCache;
+    }
+    
+    /**
+     * Gets the cache of blocks.
+     * @return The cache or null if the blocks are not cached.
+     */
+    SectorCache sectorCache() {
+        return sectorCache;
+    }
+    
+    /**
+     * Starts caching archives read through an {@link ArchiveCache}, every
+     * index opened through this store removes the archives it writes from
+     * the cache.
+     * @param maximumBytes The maximum total weight of the cached archives.
+     * @return The started cache.
+     */
+    public synchronized ArchiveCache startArchiveCache(long maximumBytes) {
+        if(archiveCache != null)
+            throw new IllegalStateException("the archive cache was already started");
+        archiveCache = new ArchiveCache(this, maximumBytes);
+        return archiveCache;
+    }
+    
+    /**
+     * Gets the cache of archives.
+     * @return The cache or null if the archives are not cached.
+     */
+    ArchiveCache archiveCache() {
+        return archiveCache;
+    }
+    
+    /**
+     * Gets the write-ahead journal.
+     * @return The journal or null if the store has no journal.
+     */
+    FileJournal journal() {
+        return journal;
+    }
+    
+    /**
+     * Forces the main file to be written to the storage device.
+     */
+    void force() throws IOException {
+        mainChannel.force(false);
+    }
+    
+    /**
+     * Loads the free block map that was saved when the main file was last
+     * closed. The saved map is deleted once it is loaded so that a map which
+     * was not saved again, because the process did not shut down cleanly,
+     * is never trusted.
+     * @return If the map was loaded.
+     */
+    private boolean loadFreeBlocks() throws IOException {
+        if(!freeFile.exists())
+            return false;
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(freeFile)));
+            try {
+                if(is.readLong() != mainChannel.size())
+                    return false;
+                long[] words = new long[is.readInt()];
+                for(int i = 0; i < words.length; i++)
+                    words[i] = is.readLong();
+                synchronized(allocationLock) {
+                    freeBlocks = BitSet.valueOf(words);
+                }
+                return true;
+            } finally {
+                is.close();
+            }
+        } catch(IOException ioex) {
+            return false;
+        } finally {
+            if(!freeFile.delete())
+                throw new IOException("failed to delete the free block map");
+        }
+    }
+    
+    /**
+     * Saves the free block map next to the main file.
+     */
+    private void saveFreeBlocks() throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(freeFile)));
+        try {
+            synchronized(allocationLock) {
+                long[] words = freeBlocks.toLongArray();
+                os.writeLong(mainChannel.size());
+                os.writeInt(words.length);
+                for(int i = 0; i < words.length; i++)
+                    os.writeLong(words[i]);
+            }
+        } finally {
+            os.close();
+        }
+    }
+    
+    /**
+     * Rebuilds the free block map by walking the chain of every archive in
+     * every index opened through this store. Every block before the end of
+     * the main file that is not part of a valid chain is marked as free, this
+     * also reclaims blocks that were orphaned by an interrupted write. Blocks
+     * whose chunk header names an index that is not open through this store
+     * are never marked as free since the chains of that index were not
+     * walked. Each index is walked while holding its write lock and blocks
+     * handed out during the rebuild are never marked as free so archives can
+     * be written while the map is rebuilt, blocks released during the rebuild
+     * are marked as free. Blocks that were free before the rebuild but are
+     * part of a chain are no longer free. The blocks of entries staged in the
+     * journal and of the committed entries they replace are both kept.
+     */
+    public void rebuildFreeBlocks() throws IOException {
+        BitSet used = new BitSet();
+        synchronized(allocationLock) {
+            scanAllocated = new BitSet();
+            scanReleased = new BitSet();
+        }
+        try {
+            if(journal != null)
+                journal.mark(used);
+            FileIndex[] indexes = indexes();
+            for(int i = 0; i < indexes.length; i++) {
+                if(indexes[i] == null)
+                    continue;
+                synchronized(indexes[i]) {
+                    int amountEntries = indexes[i].amountEntries();
+                    for(int id = 0; id < amountEntries; id++) {
+                        int[] chain = indexes[i].chain(id, indexes[i].readEntry(id));
+                        if(chain == null)
+                            continue;
+                        for(int j = 0; j < chain.length; j++)
+                            used.set(chain[j]);
+                    }
+                }
+            }
+            int end;
+            BitSet free;
+            synchronized(allocationLock) {
+                end = (int) ((mainChannel.size() + 519L) / 520L);
+                free = new BitSet(end);
+                if(end > 1)
+                    free.set(1, end);
+                free.andNot(used);
+                free.andNot(scanAllocated);
+                free.andNot(reservedBlocks);
+            }
+            free.andNot(foreignBlocks(free, indexes));
+            synchronized(allocationLock) {
+                free.andNot(scanAllocated);
+                free.or(scanReleased);
+                free.andNot(reservedBlocks);
+                free.andNot(retiredBlocks);
+                for(int block = freeBlocks.nextSetBit(end); block != -1; block = freeBlocks.nextSetBit(block + 1))
+                    free.set(block);
+                freeBlocks = free;
+                freeCursor = 1;
+            }
+        } finally {
+            synchronized(allocationLock) {
+                scanAllocated = null;
+                scanReleased = null;
+            }
+        }
+    }
+    
+    /**
+     * Finds the blocks whose chunk header names an index that is not open
+     * through this store, these may belong to a chain that was not walked.
+     * @param blocks The blocks to check.
+     * @param indexes The indexes by index id, unopened indexes are null.
+     * @return The blocks that belong to an index that is not open.
+     */
+    private BitSet foreignBlocks(BitSet blocks, FileIndex[] indexes) throws IOException {
+        BitSet foreign = new BitSet();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        for(int block = blocks.nextSetBit(0); block != -1; block = blocks.nextSetBit(block + 1)) {
+            buffer.clear();
+            if(!read(buffer, 520L * block))
+                break;
+            if(indexes[buffer.get(7) & 0xff] == null)
+                foreign.set(block);
+        }
+        return foreign;
+    }
+    
+    /**
+     * Gets the amount of free blocks before the end of the main file.
+     * @return The amount of free blocks.
+     */
+    public int amountFreeBlocks() {
+        synchronized(allocationLock) {
+            return freeBlocks.cardinality();
+        }
+    }
+    
+    /**
+     * Gets a snapshot of the blocks that are not referenced by any archive
+     * because they are either free, reserved by an open archive stream or
+     * retired and waiting for reads to finish.
+     * @return The unreferenced blocks.
+     */
+    BitSet unreferencedBlocks() {
+        synchronized(allocationLock) {
+            BitSet blocks = (BitSet) freeBlocks.clone();
+            blocks.or(reservedBlocks);
+            blocks.or(retiredBlocks);
+            return blocks;
+        }
+    }
+    
+    /**
+     * Opens a {@link FileIndex} that shares the main file of this store.
+     * If the index is already open then the open index is returned.
+     * @param indexId The index id.
+     * @param indexFile The {@link RandomAccessFile} for the index file.
+     * @param flags The option flags, see {@link FileIndex#MAP_FILES} and
+     *              {@link FileIndex#CACHE_INDEX}.
+     * @return The opened {@link FileIndex}.
+     */
+    public FileIndex openIndex(int indexId, RandomAccessFile indexFile, int flags) throws IOException {
+        synchronized(indexes) {
+            if(indexes[indexId] == null)
+                indexes[indexId] = new FileIndex(indexId, this, indexFile, flags);
+            return indexes[indexId];
+        }
+    }
+    
+    /**
+     * Gets the checksum table file of an index.
+     * @param indexId The index id.
+     * @return The file or null if the store was not opened from a directory.
+     */
+    File checksumFile(int indexId) {
+        return directory == null ? null : new File(directory, CHECKSUM_FILE_PREFIX + indexId);
+    }
+    
+    /**
+     * Gets a snapshot of the indexes that were opened through this store.
+     * @return The indexes by index id, unopened indexes are null.
+     */
+    FileIndex[] indexes() {
+        synchronized(indexes) {
+            return indexes.clone();
+        }
+    }
+    
+    /**
+     * Checks if every index of the cache is open through this store, which
+     * is only known for a store that was opened from a cache directory. Every
+     * index file in the directory has to be open.
+     * @return If every index is open.
+     */
+    boolean hasAllIndexes() {
+        if(directory == null)
+            return false;
+        synchronized(indexes) {
+            for(int i = 0; i < MAX_INDEXES; i++) {
+                if(indexes[i] == null && new File(directory, INDEX_FILE_PREFIX + i).exists())
+                    return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Gets an index that was opened through this {@link FileStore}.
+     * @param indexId The index id.
+     * @return The {@link FileIndex} or null if the index is not open.
+     */
+    public FileIndex getIndex(int indexId) {
+        synchronized(indexes) {
+            return indexes[indexId];
+        }
+    }
+    
+    /**
+     * Allocates a new block, a free block is handed out if there is one and
+     * otherwise a block at the end of the main file. The block is reserved
+     * for the caller even before it is written so no two callers will ever
+     * be handed the same block.
+     * @return The allocated block.
+     */
+    int allocate() throws IOException {
+        synchronized(allocationLock) {
+            int block = freeBlocks.nextSetBit(freeCursor);
+            if(block == -1)
+                block = freeBlocks.nextSetBit(1);
+            if(block != -1) {
+                freeBlocks.clear(block);
+                freeCursor = block + 1;
+            } else {
+                extend(1);
+                block = (int) nextBlock++;
+            }
+            if(scanAllocated != null) {
+                scanAllocated.set(block);
+                scanReleased.clear(block);
+            }
+            return block;
+        }
+    }
+    
+    /**
+     * Allocates a new block that is kept reserved until it is either linked
+     * into an index entry or given up, see {@link #unreserve(int[], int)}.
+     * Reserved blocks stay allocated when the free block map is rebuilt even
+     * though no index entry references them yet.
+     * @return The allocated block.
+     */
+    int reserve() throws IOException {
+        synchronized(allocationLock) {
+            int block = allocate();
+            reservedBlocks.set(block);
+            return block;
+        }
+    }
+    
+    /**
+     * Ends the reservation of blocks handed out by {@link #reserve()}.
+     * @param blocks The reserved blocks.
+     * @param amount The amount of blocks.
+     * @param release If the blocks are released instead of kept allocated.
+     */
+    void unreserve(int[] blocks, int amount, boolean release) {
+        synchronized(allocationLock) {
+            for(int i = 0; i < amount; i++) {
+                reservedBlocks.clear(blocks[i]);
+                if(release)
+                    release(blocks[i]);
+            }
+        }
+    }
+    
+    /**
+     * Allocates a run of consecutive blocks. The first run of free blocks
+     * that is long enough is handed out, a free run that reaches the end of
+     * the main file is extended past the end.
+     * @param amount The amount of blocks.
+     * @param before The block the run has to start before or -1 if the run
+     *               may be allocated at the end of the main file.
+     * @return The first block of the run or -1 if there is no free run that
+     *         starts before the requested block.
+     */
+    int allocateRun(int amount, int before) throws IOException {
+        synchronized(allocationLock) {
+            extend(0);
+            int start = freeBlocks.nextSetBit(1);
+            while(start != -1 && (before == -1 || start < before)) {
+                int end = freeBlocks.nextClearBit(start);
+                if(end - start >= amount || end >= nextBlock) {
+                    if(end >= nextBlock) {
+                        extend(start + amount - (int) nextBlock);
+                        if(start + amount > nextBlock)
+                            nextBlock = start + amount;
+                    }
+                    freeBlocks.clear(start, start + amount);
+                    if(scanAllocated != null) {
+                        scanAllocated.set(start, start + amount);
+                        scanReleased.clear(start, start + amount);
+                    }
+                    return start;
+                }
+                start = freeBlocks.nextSetBit(end);
+            }
+            if(before != -1)
+                return -1;
+            extend(amount);
+            start = (int) nextBlock;
+            nextBlock += amount;
+            if(scanAllocated != null) {
+                scanAllocated.set(start, start + amount);
+                scanReleased.clear(start, start + amount);
+            }
+            return start;
+        }
+    }
+    
+    /**
+     * Moves the next block past the end of the main file if the file has
+     * grown and checks that a number of blocks can still be referenced 
+     * after it. Must be called while holding the allocation lock.
+     * @param amount The amount of blocks that will be handed out.
+     */
+    private void extend(int amount) throws IOException {
+        long end = (mainChannel.size() + 519L) / 520L;
+        if(end > nextBlock)
+            nextBlock = end;
+        if(nextBlock == 0L)
+            nextBlock = 1L;
+        if(nextBlock + amount - 1 > MAX_BLOCK)
+            throw new IOException("main file is full");
+    }
+    
+    /**
+     * Truncates the free blocks at the end of the main file. The main file is
+     * not truncated while it is mapped since the mapped segments would then
+     * reach past the end of the file.
+     * @return The amount of blocks that were truncated.
+     */
+    int trim() throws IOException {
+        synchronized(allocationLock) {
+            if(mainSegments != null)
+                return 0;
+            extend(0);
+            int last = (int) nextBlock;
+            while(last > 1 && freeBlocks.get(last - 1))
+                last--;
+            int amount = (int) nextBlock - last;
+            if(amount == 0)
+                return 0;
+            freeBlocks.clear(last, (int) nextBlock);
+            mainChannel.truncate(520L * last);
+            nextBlock = last;
+            if(freeCursor > last)
+                freeCursor = 1;
+            return amount;
+        }
+    }
+    
+    /**
+     * Releases a block that is no longer referenced by any archive so that
+     * it can be handed out again.
+     * @param block The block to release.
+     */
+    void release(int block) {
+        if(block <= 0)
+            return;
+        synchronized(allocationLock) {
+            freeBlocks.set(block);
+            if(scanReleased != null)
+                scanReleased.set(block);
+        }
+    }
+    
+    /**
+     * Enters a read of archive chains. Blocks that are retired after the read
+     * entered are not released before it exits, so a read that looked up an
+     * index entry can walk its chain even if the archive is replaced while it
+     * is being read. Entering a read never waits on a lock.
+     * @return The epoch the read entered, which has to be passed to
+     *         {@link #exitRead(ReadEpoch)} once the read is done.
+     */
+    ReadEpoch enterRead() {
+        for(;;) {
+            ReadEpoch epoch = readEpoch;
+            int readers = epoch.readers.get();
+            if(readers > 0 && epoch.readers.compareAndSet(readers, readers + 1))
+                return epoch;
+        }
+    }
+    
+    /**
+     * Exits a read, see {@link #enterRead()}.
+     * @param epoch The epoch the read entered.
+     */
+    void exitRead(ReadEpoch epoch) {
+        if(epoch.readers.decrementAndGet() == 0)
+            reclaim();
+    }
+    
+    /**
+     * Retires the blocks of a chain that is no longer referenced by its index
+     * entry. The blocks are released once every read that entered before they
+     * were retired has exited, right away if there is no such read.
+     * @param blocks The blocks or null if there are none.
+     */
+    void retire(int[] blocks) {
+        if(blocks == null || blocks.length == 0)
+            return;
+        synchronized(allocationLock) {
+            for(int i = 0; i < blocks.length; i++) {
+                if(blocks[i] > 0)
+                    retiredBlocks.set(blocks[i]);
+            }
+        }
+        ReadEpoch epoch;
+        synchronized(epochLock) {
+            epoch = readEpoch;
+            epoch.retired = blocks;
+            epoch.next = new ReadEpoch();
+            readEpoch = epoch.next;
+        }
+        if(epoch.readers.decrementAndGet() == 0)
+            reclaim();
+    }
+    
+    /**
+     * Releases the retired blocks of the epochs that have no reads left, in
+     * the order the epochs ended in.
+     */
+    private void reclaim() {
+        synchronized(epochLock) {
+            ReadEpoch epoch = oldestEpoch;
+            while(epoch != readEpoch && epoch.readers.get() == 0) {
+                releaseRetired(epoch.retired);
+                epoch = epoch.next;
+            }
+            oldestEpoch = epoch;
+        }
+    }
+    
+    /**
+     * Releases blocks that were retired.
+     * @param blocks The blocks.
+     */
+    private void releaseRetired(int[] blocks) {
+        synchronized(allocationLock) {
+            for(int i = 0; i < blocks.length; i++) {
+                if(blocks[i] > 0)
+                    retiredBlocks.clear(blocks[i]);
+                release(blocks[i]);
+            }
+        }
+    }
+    
+    /**
+     * Gets the length of the main file.
+     * @return The length in bytes.
+     */
+    long length() throws IOException {
+        return mainChannel.size();
+    }
+    
+    /**
+     * Reads from the main file at an absolute position until the buffer has
+     * no remaining space.
+     * @param buffer The buffer to read into.
+     * @param position The position in the main file.
+     * @return If the buffer was filled before the end of the main file.
+     */
+    boolean read(ByteBuffer buffer, long position) throws IOException {
+        return readFully(mainChannel, buffer, position);
+    }
+    
+    /**
+     * Writes the remaining bytes of a buffer to the main file at an absolute
+     * position.
+     * @param buffer The buffer to write.
+     * @param position The position in the main file.
+     */
+    void write(ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        writeFully(mainChannel, buffer, position);
+        SectorCache cache = sectorCache;
+        if(cache != null && length > 0) {
+            int block = (int) (position / 520L);
+            cache.invalidate(block, (int) ((position + length - 1L) / 520L) - block + 1);
+        }
+    }
+    
+    /**
+     * Transfers bytes from the main file directly to a channel without 
+     * copying them through the Java heap.
+     * @param position The position in the main file.
+     * @param count The amount of bytes to transfer.
+     * @param target The channel to transfer to.
+     */
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        while(count > 0L) {
+            long transferred = mainChannel.transferTo(position, count, target);
+            if(transferred <= 0L && position >= mainChannel.size())
+                throw new IOException("transfer past the end of the main file");
+            position += transferred;
+            count -= transferred;
+        }
+    }
+    
+    /**
+     * Gets the mapped segments of the main file, the main file is mapped if
+     * it has not been mapped yet.
+     * @return The mapped segments.
+     */
+    MappedByteBuffer[] segments() throws IOException {
+        MappedByteBuffer[] segments = mainSegments;
+        if(segments == null)
+            segments = remap();
+        return segments;
+    }
+    
+    /**
+     * Gets the mapped segment that holds a block. The main file is remapped
+     * if the block lies in a segment that is not mapped to its full size or
+     * at least {@link #REMAP_SIZE} bytes past the mapped part of the last
+     * segment, so a block that was only just written may not be mapped yet.
+     * @param block The block.
+     * @param length The amount of bytes of the block that are needed.
+     * @return The segment or null if the bytes are not mapped, they then have
+     *         to be read from the main file.
+     */
+    MappedByteBuffer segment(int block, int length) throws IOException {
+        MappedByteBuffer[] segments = segments();
+        int segment = block / SEGMENT_BLOCKS;
+        long end = (block % SEGMENT_BLOCKS) * 520L + length;
+        if(segment < segments.length && end <= segments[segment].limit())
+            return segments[segment];
+        if(segment == segments.length - 1 && end - segments[segment].limit() < REMAP_SIZE)
+            return null;
+        segments = remap();
+        if(segment < segments.length && end <= segments[segment].limit())
+            return segments[segment];
+        return null;
+    }
+    
+    /**
+     * Remaps the main file so that the mapped segments cover the entire file.
+     * Segments that were already mapped to their full size are reused and so
+     * is the last segment as long as the main file has grown less than
+     * {@link #REMAP_SIZE} bytes past it.
+     * @return The new mapped segments.
+     */
+    MappedByteBuffer[] remap() throws IOException {
+        synchronized(mapLock) {
+            long length = mainChannel.size();
+            MappedByteBuffer[] segments = mainSegments;
+            int amountSegments = (int) ((length + SEGMENT_SIZE - 1L) / SEGMENT_SIZE);
+            MappedByteBuffer[] remapped = new MappedByteBuffer[amountSegments];
+            for(int i = 0; i < amountSegments; i++) {
+                long position = i * SEGMENT_SIZE;
+                long size = length - position;
+                if(size > SEGMENT_SIZE)
+                    size = SEGMENT_SIZE;
+                MappedByteBuffer segment = segments != null && i < segments.length ? segments[i] : null;
+                if(segment == null || segment.limit() > size ||
+                   segment.limit() < size && (i < amountSegments - 1 || size - segment.limit() >= REMAP_SIZE))
+                    segment = mainChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                remapped[i] = segment;
+            }
+            mainSegments = remapped;
+            return remapped;
+        }
+    }
+    
+    /**
+     * Reads from a {@link FileChannel} at an absolute position until the
+     * buffer has no remaining space. The position of the channel is not
+     * modified so any amount of threads can read from the channel at once.
+     * @param channel The channel to read from.
+     * @param buffer The buffer to read into.
+     * @param position The position in the channel to start reading at.
+     * @return If the buffer was filled before the end of the channel.
+     */
+    static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read == -1)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+    
+    /**
+     * Writes the remaining bytes of a buffer to a {@link FileChannel} at an
+     * absolute position without modifying the position of the channel.
+     * @param channel The channel to write to.
+     * @param buffer The buffer to write.
+     * @param position The position in the channel to start writing at.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+    
+    /**
+     * Destroys this {@link FileStore} and every index opened through it.
+     * This {@link FileStore} will not be usable after it is destroyed.
+     */
+    public void destroy() {
+        FileScheduler scheduler;
+        synchronized(this) {
+            scheduler = this.scheduler;
+        }
+        if(scheduler != null)
+            scheduler.shutdown();
+        if(journal != null) {
+            try {
+                journal.commit();
+            } catch(IOException ioex) {}
+            journal.destroy();
+        }
+        synchronized(indexes) {
+            for(int i = 0; i < MAX_INDEXES; i++) {
+                if(indexes[i] != null) {
+                    indexes[i].destroy();
+                    indexes[i] = null;
+                }
+            }
+        }
+        synchronized(epochLock) {
+            for(ReadEpoch epoch = oldestEpoch; epoch != readEpoch; epoch = epoch.next)
+                releaseRetired(epoch.retired);
+            oldestEpoch = readEpoch;
+        }
+        try {
+            if(freeFile != null)
+                saveFreeBlocks();
+        } catch(IOException ioex) {}
+        try {
+            mainFile.close();
+        } catch(IOException ioex) {}
+        mainSegments = null;
+    }
+    
+    /**
+     * Constructs a new {@link FileStore};
+     * @param mainFile The {@link RandomAccessFile} for the main file.
+     */
+    public FileStore(RandomAccessFile mainFile) {
+        this.mainFile = mainFile;
+        this.mainChannel = mainFile.getChannel();
+    }
+}
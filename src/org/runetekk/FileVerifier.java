@@ -0,0 +1,371 @@
+package org.runetekk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * FileVerifier.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * Verifies the integrity of every index opened through a {@link FileStore}.
+ * The chunk chain of every index entry is walked without reading the
+ * payloads and the header of each chunk is checked against the archive id,
+ * the chunk number and the index id. The entries are spread over a number of
+ * worker threads which all read the main file with positional reads. A pass
+ * reports the chains that end before the archive size is reached, the blocks
+ * that are referenced by more than one chain and the orphaned blocks that are
+ * neither part of a chain nor free. The store should not be written to while
+ * it is verified or the writes may be reported as problems.
+ */
+public final class FileVerifier implements Runnable {
+    
+    /**
+     * The amount of archive ids each worker takes at once.
+     */
+    private static final int BATCH_SIZE = 256;
+    
+    /**
+     * The maximum amount of problems that are described, problems past this
+     * amount are only counted.
+     */
+    private static final int MAX_PROBLEMS = 10000;
+    
+    /**
+     * The {@link FileStore} to verify.
+     */
+    private FileStore store;
+    
+    /**
+     * The amount of worker threads.
+     */
+    private int amountThreads;
+    
+    /**
+     * The indexes being verified.
+     */
+    private FileIndex[] indexes;
+    
+    /**
+     * The amount of entries of each index being verified.
+     */
+    private int[] amountEntries;
+    
+    /**
+     * The next batch of archive ids to verify, counted over all indexes.
+     */
+    private AtomicInteger nextBatch;
+    
+    /**
+     * The amount of blocks before the end of the main file.
+     */
+    private int amountBlocks;
+    
+    /**
+     * The owner of each block, the index id in the upper bits, the archive id
+     * in the lower 16 bits and plus one so that zero marks no owner.
+     */
+    private AtomicIntegerArray owners;
+    
+    /**
+     * The references to blocks that failed validation, each holding the
+     * block, the owner of the referencing chain and the referencing chunk.
+     */
+    private final ArrayList<int[]> failedReferences = new ArrayList<int[]>();
+    
+    /**
+     * The descriptions of the problems found by the last pass.
+     */
+    private final ArrayList<String> problems = new ArrayList<String>();
+    
+    /**
+     * The amount of archives checked by the last pass.
+     */
+    private AtomicInteger archivesChecked = new AtomicInteger();
+    
+    /**
+     * The amount of archives with a complete chain found by the last pass.
+     */
+    private AtomicInteger archivesValid = new AtomicInteger();
+    
+    /**
+     * The amount of chains that ended early found by the last pass.
+     */
+    private AtomicInteger truncatedChains = new AtomicInteger();
+    
+    /**
+     * The amount of cross-linked blocks found by the last pass.
+     */
+    private AtomicInteger crossLinkedBlocks = new AtomicInteger();
+    
+    /**
+     * The amount of orphaned blocks found by the last pass.
+     */
+    private volatile int orphanedBlocks;
+    
+    /**
+     * The {@link IOException} that ended the last pass or null if the pass
+     * completed.
+     */
+    private volatile IOException failure;
+    
+    /**
+     * Runs a single verification pass.
+     */
+    @Override
+    public void run() {
+        synchronized(problems) {
+            problems.clear();
+        }
+        failedReferences.clear();
+        archivesChecked.set(0);
+        archivesValid.set(0);
+        truncatedChains.set(0);
+        crossLinkedBlocks.set(0);
+        orphanedBlocks = 0;
+        failure = null;
+        try {
+            indexes = store.indexes();
+            amountEntries = new int[indexes.length];
+            for(int i = 0; i < indexes.length; i++) {
+                if(indexes[i] != null)
+                    amountEntries[i] = indexes[i].amountEntries();
+            }
+            amountBlocks = (int) ((store.length() + 519L) / 520L);
+            owners = new AtomicIntegerArray(amountBlocks);
+            nextBatch = new AtomicInteger();
+            Thread[] workers = new Thread[amountThreads];
+            for(int i = 0; i < amountThreads; i++) {
+                workers[i] = new Thread("FileVerifier-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            verifyBatches();
+                        } catch(IOException ioex) {
+                            failure = ioex;
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+            for(int i = 0; i < workers.length; i++)
+                workers[i].join();
+            if(failure != null)
+                return;
+            for(int i = 0; i < failedReferences.size(); i++) {
+                int[] reference = failedReferences.get(i);
+                int owner = owners.get(reference[0]);
+                if(owner == 0)
+                    continue;
+                crossLinkedBlocks.incrementAndGet();
+                report(describe(reference[1]) + ": chunk " + reference[2] + " points at block " + reference[0] + " which belongs to " + describe(owner));
+            }
+            BitSet unreferenced = store.unreferencedBlocks();
+            FileJournal journal = store.journal();
+            if(journal != null)
+                journal.mark(unreferenced);
+            int orphaned = 0;
+            for(int block = 1; block < amountBlocks; block++) {
+                if(owners.get(block) != 0 || unreferenced.get(block))
+                    continue;
+                orphaned++;
+                report("block " + block + " is neither part of a chain nor free");
+            }
+            orphanedBlocks = orphaned;
+        } catch(IOException ioex) {
+            failure = ioex;
+        } catch(InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            owners = null;
+            indexes = null;
+        }
+    }
+    
+    /**
+     * Verifies batches of archive ids until none are left.
+     */
+    private void verifyBatches() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        for(;;) {
+            int batch = nextBatch.getAndIncrement();
+            int indexId = 0;
+            for(; indexId < indexes.length; indexId++) {
+                int amountBatches = (amountEntries[indexId] + BATCH_SIZE - 1) / BATCH_SIZE;
+                if(batch < amountBatches)
+                    break;
+                batch -= amountBatches;
+            }
+            if(indexId == indexes.length)
+                return;
+            int start = batch * BATCH_SIZE;
+            int end = start + BATCH_SIZE;
+            if(end > amountEntries[indexId])
+                end = amountEntries[indexId];
+            for(int id = start; id < end; id++)
+                verify(indexes[indexId], indexId, id, buffer);
+        }
+    }
+    
+    /**
+     * Walks and verifies the chunk chain of an archive.
+     * @param index The {@link FileIndex} of the archive.
+     * @param indexId The index id.
+     * @param id The archive id.
+     * @param buffer The buffer to read the chunk headers into.
+     */
+    private void verify(FileIndex index, int indexId, int id, ByteBuffer buffer) throws IOException {
+        long entry = index.readEntry(id);
+        if(entry == -1L || entry == 0L)
+            return;
+        archivesChecked.incrementAndGet();
+        int owner = (indexId << 16 | id) + 1;
+        int size = (int) (entry >>> 24);
+        int block = (int) entry & 0xffffff;
+        if(size == 0) {
+            archivesValid.incrementAndGet();
+            return;
+        }
+        int amountChunks = (size + 511) / 512;
+        for(int chunk = 0; chunk < amountChunks; chunk++) {
+            if(block <= 0 || block >= amountBlocks) {
+                truncatedChains.incrementAndGet();
+                report(describe(owner) + ": chunk " + chunk + " of " + amountChunks + " points at block " + block + " which is outside of the main file");
+                return;
+            }
+            buffer.clear();
+            if(!store.read(buffer, 520L * block)) {
+                truncatedChains.incrementAndGet();
+                report(describe(owner) + ": chunk " + chunk + " at block " + block + " is cut off by the end of the main file");
+                return;
+            }
+            int expectedArchive = ((buffer.get(0) & 0xff) << 8) + (buffer.get(1) & 0xff);
+            int expectedChunk = ((buffer.get(2) & 0xff) << 8) + (buffer.get(3) & 0xff);
+            int nextBlock = ((buffer.get(4) & 0xff) << 16) + ((buffer.get(5) & 0xff) << 8) + (buffer.get(6) & 0xff);
+            int expectedIndex = buffer.get(7) & 0xff;
+            if(expectedArchive != id || expectedChunk != chunk || expectedIndex != indexId) {
+                truncatedChains.incrementAndGet();
+                report(describe(owner) + ": chunk " + chunk + " of " + amountChunks + " at block " + block + " has the header of index " + expectedIndex + " archive " + expectedArchive + " chunk " + expectedChunk);
+                synchronized(failedReferences) {
+                    failedReferences.add(new int[] { block, owner, chunk });
+                }
+                return;
+            }
+            if(!owners.compareAndSet(block, 0, owner)) {
+                crossLinkedBlocks.incrementAndGet();
+                report(describe(owner) + ": chunk " + chunk + " at block " + block + " is also referenced by " + describe(owners.get(block)));
+                truncatedChains.incrementAndGet();
+                return;
+            }
+            block = nextBlock;
+        }
+        archivesValid.incrementAndGet();
+    }
+    
+    /**
+     * Describes the archive that owns a block.
+     * @param owner The owner.
+     * @return The description.
+     */
+    private static String describe(int owner) {
+        owner--;
+        return "index " + (owner >>> 16) + " archive " + (owner & 0xffff);
+    }
+    
+    /**
+     * Adds the description of a problem to the report of the pass.
+     * @param problem The description.
+     */
+    private void report(String problem) {
+        synchronized(problems) {
+            if(problems.size() < MAX_PROBLEMS)
+                problems.add(problem);
+        }
+    }
+    
+    /**
+     * Gets the descriptions of the problems found by the last pass.
+     * @return The descriptions, at most {@link #MAX_PROBLEMS} are kept.
+     */
+    public List<String> getProblems() {
+        synchronized(problems) {
+            return Collections.unmodifiableList(new ArrayList<String>(problems));
+        }
+    }
+    
+    /**
+     * Gets if the last pass found no problems.
+     * @return If the store is consistent.
+     */
+    public boolean isConsistent() {
+        return failure == null && truncatedChains.get() == 0 && crossLinkedBlocks.get() == 0 && orphanedBlocks == 0;
+    }
+    
+    /**
+     * Gets the amount of archives checked by the last pass.
+     * @return The amount of archives.
+     */
+    public int getArchivesChecked() {
+        return archivesChecked.get();
+    }
+    
+    /**
+     * Gets the amount of archives with a complete chain found by the last
+     * pass.
+     * @return The amount of archives.
+     */
+    public int getArchivesValid() {
+        return archivesValid.get();
+    }
+    
+    /**
+     * Gets the amount of chains that ended before the archive size was
+     * reached found by the last pass.
+     * @return The amount of chains.
+     */
+    public int getTruncatedChains() {
+        return truncatedChains.get();
+    }
+    
+    /**
+     * Gets the amount of blocks that are referenced by more than one chain
+     * found by the last pass.
+     * @return The amount of blocks.
+     */
+    public int getCrossLinkedBlocks() {
+        return crossLinkedBlocks.get();
+    }
+    
+    /**
+     * Gets the amount of blocks that are neither part of a chain nor free
+     * found by the last pass.
+     * @return The amount of blocks.
+     */
+    public int getOrphanedBlocks() {
+        return orphanedBlocks;
+    }
+    
+    /**
+     * Gets the {@link IOException} that ended the last pass.
+     * @return The exception or null if the pass completed.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+    
+    /**
+     * Constructs a new {@link FileVerifier};
+     * @param store The {@link FileStore} to verify.
+     * @param amountThreads The amount of worker threads.
+     */
+    public FileVerifier(FileStore store, int amountThreads) {
+        this.store = store;
+        this.amountThreads = amountThreads;
+    }
+}
@@ -0,0 +1,408 @@
+package org.runetekk;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SectorCache.java
+ * @version 1.0.0
+ * @author RuneTekk Development (SiniSoul)
+ *
+ * A cache of raw 520 byte blocks of the main file shared by every index of a
+ * {@link FileStore}. The blocks are held in a fixed amount of slots in a
+ * single direct buffer so the memory used never changes after construction.
+ * The slots are split over stripes that each have their own lock so that
+ * lookups of different blocks do not contend. Slots are evicted with the
+ * CLOCK policy within each stripe, a block is only marked referenced
+ * once it is hit so blocks that are read only once during a scan are evicted
+ * before the hot blocks. Every write to the main file invalidates the written
+ * blocks, a read that started before an invalidation of one of its blocks is
+ * not allowed to put the block it read back in the cache.
+ */
+public final class SectorCache {
+    
+    /**
+     * The size of a slot.
+     */
+    private static final int SLOT_SIZE = 520;
+    
+    /**
+     * The maximum amount of stripes.
+     */
+    private static final int MAX_STRIPES = 16;
+    
+    /**
+     * The stripes the slots are split over.
+     */
+    private Stripe[] stripes;
+    
+    /**
+     * The amount of bits of a hash that are shifted out to get its stripe.
+     */
+    private int stripeShift;
+    
+    /**
+     * The amount of slots.
+     */
+    private int capacity;
+    
+    /**
+     * The amount of invalidations so far.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    
+    /**
+     * Gets the current generation, which has to be taken before reading the
+     * blocks that will be put in the cache.
+     * @return The generation.
+     */
+    long generation() {
+        return generation.get();
+    }
+    
+    /**
+     * Copies a cached block into a buffer, the remaining bytes of the buffer
+     * are filled from the start of the block.
+     * @param block The block.
+     * @param dst The destination buffer.
+     * @return If the block was cached, false if it was not cached or not
+     *         enough bytes of it were cached.
+     */
+    boolean get(int block, ByteBuffer dst) {
+        int hash = hash(block);
+        return stripe(hash).get(block, hash, dst);
+    }
+    
+    /**
+     * Puts consecutive blocks that were read from the main file in the cache.
+     * Blocks that were invalidated after the generation was taken are not
+     * put in the cache.
+     * @param block The first block.
+     * @param src The buffer holding the blocks from its start.
+     * @param length The amount of bytes read into the buffer.
+     * @param generation The generation taken before the blocks were read.
+     */
+    void put(int block, ByteBuffer src, int length, long generation) {
+        for(int off = 0; off < length; off += SLOT_SIZE, block++) {
+            int amount = length - off;
+            if(amount > SLOT_SIZE)
+                amount = SLOT_SIZE;
+            int hash = hash(block);
+            stripe(hash).put(block, hash, src, off, amount, generation);
+        }
+    }
+    
+    /**
+     * Invalidates consecutive blocks after they were written.
+     * @param block The first block.
+     * @param amount The amount of blocks.
+     */
+    void invalidate(int block, int amount) {
+        long generation = this.generation.incrementAndGet();
+        for(int i = 0; i < amount; i++, block++) {
+            int hash = hash(block);
+            stripe(hash).invalidate(block, hash, generation);
+        }
+    }
+    
+    /**
+     * Gets the stripe of a hash.
+     * @param hash The hash of the block.
+     * @return The stripe.
+     */
+    private Stripe stripe(int hash) {
+        return stripes[stripeShift == 32 ? 0 : hash >>> stripeShift];
+    }
+    
+    /**
+     * Hashes a block, the high bits select the stripe and the low bits the
+     * home table position within the stripe.
+     * @param block The block.
+     * @return The hash.
+     */
+    private static int hash(int block) {
+        int hash = block * 0x9e3779b9;
+        return hash ^ hash >>> 16;
+    }
+    
+    /**
+     * Gets the amount of slots.
+     * @return The capacity in blocks.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Gets the amount of blocks that were served from the cache.
+     * @return The amount of hits.
+     */
+    public long getHits() {
+        long hits = 0L;
+        for(Stripe stripe : stripes)
+            hits += stripe.getHits();
+        return hits;
+    }
+    
+    /**
+     * Gets the amount of blocks that were looked up and not in the cache.
+     * @return The amount of misses.
+     */
+    public long getMisses() {
+        long misses = 0L;
+        for(Stripe stripe : stripes)
+            misses += stripe.getMisses();
+        return misses;
+    }
+    
+    /**
+     * Constructs a new {@link SectorCache};
+     * @param amountSlots The amount of blocks the cache holds.
+     */
+    SectorCache(int amountSlots) {
+        if(amountSlots <= 0 || amountSlots > Integer.MAX_VALUE / SLOT_SIZE)
+            throw new IllegalArgumentException("amount of slots out of range: " + amountSlots);
+        ByteBuffer arena = ByteBuffer.allocateDirect(amountSlots * SLOT_SIZE);
+        int amountStripes = Math.min(MAX_STRIPES, Integer.highestOneBit(amountSlots));
+        stripes = new Stripe[amountStripes];
+        stripeShift = 32 - Integer.numberOfTrailingZeros(amountStripes);
+        capacity = amountSlots;
+        for(int i = 0, slot = 0; i < amountStripes; i++) {
+            int stripeSlots = amountSlots / amountStripes + (i < amountSlots % amountStripes ? 1 : 0);
+            arena.limit((slot + stripeSlots) * SLOT_SIZE);
+            arena.position(slot * SLOT_SIZE);
+            stripes[i] = new Stripe(arena.slice(), stripeSlots);
+            slot += stripeSlots;
+        }
+    }
+    
+    /**
+     * A part of the slots of the cache with its own table and clock hand,
+     * every method of a stripe holds its lock.
+     */
+    private static final class Stripe {
+        
+        /**
+         * The slots of the cached blocks.
+         */
+        private ByteBuffer arena;
+        
+        /**
+         * The block held in each slot or zero if the slot is empty.
+         */
+        private int[] slotBlocks;
+        
+        /**
+         * The amount of bytes of the block that are held in each slot.
+         */
+        private int[] slotLengths;
+        
+        /**
+         * If each slot was hit since the clock hand last passed it.
+         */
+        private boolean[] referenced;
+        
+        /**
+         * The slot the clock hand points at.
+         */
+        private int hand;
+        
+        /**
+         * The blocks of the open addressing table from blocks to slots, zero
+         * marks an empty table entry.
+         */
+        private int[] tableBlocks;
+        
+        /**
+         * The slots of the open addressing table from blocks to slots.
+         */
+        private int[] tableSlots;
+        
+        /**
+         * The mask for the table positions.
+         */
+        private int mask;
+        
+        /**
+         * The generation at which a block hashing to each table position was
+         * last invalidated.
+         */
+        private long[] invalidated;
+        
+        /**
+         * The amount of blocks that were served from the stripe.
+         */
+        private long hits;
+        
+        /**
+         * The amount of blocks that were not in the stripe.
+         */
+        private long misses;
+        
+        /**
+         * Copies a cached block into a buffer.
+         * @param block The block.
+         * @param hash The hash of the block.
+         * @param dst The destination buffer.
+         * @return If enough bytes of the block were cached.
+         */
+        synchronized boolean get(int block, int hash, ByteBuffer dst) {
+            int position = find(block, hash);
+            if(position < 0 || slotLengths[tableSlots[position]] < dst.remaining()) {
+                misses++;
+                return false;
+            }
+            int slot = tableSlots[position];
+            arena.limit(slot * SLOT_SIZE + dst.remaining());
+            arena.position(slot * SLOT_SIZE);
+            dst.put(arena);
+            referenced[slot] = true;
+            hits++;
+            return true;
+        }
+        
+        /**
+         * Puts a block that was read from the main file in the stripe.
+         * @param block The block.
+         * @param hash The hash of the block.
+         * @param src The buffer holding the block.
+         * @param off The offset of the block in the buffer.
+         * @param amount The amount of bytes of the block.
+         * @param generation The generation taken before the block was read.
+         */
+        synchronized void put(int block, int hash, ByteBuffer src, int off, int amount, long generation) {
+            if(invalidated[hash & mask] > generation)
+                return;
+            int position = find(block, hash);
+            int slot;
+            if(position >= 0) {
+                slot = tableSlots[position];
+                if(slotLengths[slot] >= amount)
+                    return;
+            } else {
+                slot = evict();
+                position = ~find(block, hash);
+                tableBlocks[position] = block;
+                tableSlots[position] = slot;
+                slotBlocks[slot] = block;
+            }
+            ByteBuffer view = src.duplicate();
+            view.limit(off + amount);
+            view.position(off);
+            arena.limit(slot * SLOT_SIZE + amount);
+            arena.position(slot * SLOT_SIZE);
+            arena.put(view);
+            slotLengths[slot] = amount;
+        }
+        
+        /**
+         * Invalidates a block after it was written.
+         * @param block The block.
+         * @param hash The hash of the block.
+         * @param generation The generation of the invalidation.
+         */
+        synchronized void invalidate(int block, int hash, long generation) {
+            invalidated[hash & mask] = generation;
+            int position = find(block, hash);
+            if(position < 0)
+                return;
+            int slot = tableSlots[position];
+            slotBlocks[slot] = 0;
+            referenced[slot] = false;
+            remove(position);
+        }
+        
+        /**
+         * Advances the clock hand to a slot that can be reused, the block held
+         * in the slot is removed from the stripe.
+         * @return The slot.
+         */
+        private int evict() {
+            for(;;) {
+                int slot = hand;
+                hand = (hand + 1) % slotBlocks.length;
+                if(slotBlocks[slot] == 0)
+                    return slot;
+                if(referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+                remove(find(slotBlocks[slot], hash(slotBlocks[slot])));
+                slotBlocks[slot] = 0;
+                return slot;
+            }
+        }
+        
+        /**
+         * Finds the table position of a block.
+         * @param block The block.
+         * @param hash The hash of the block.
+         * @return The position or the complement of the empty position the
+         *         block would be inserted at if it is not in the table.
+         */
+        private int find(int block, int hash) {
+            int position = hash & mask;
+            while(tableBlocks[position] != 0) {
+                if(tableBlocks[position] == block)
+                    return position;
+                position = (position + 1) & mask;
+            }
+            return ~position;
+        }
+        
+        /**
+         * Removes the block at a table position, the entries after it are
+         * moved back so that no lookup stops early at the emptied position.
+         * @param position The table position.
+         */
+        private void remove(int position) {
+            tableBlocks[position] = 0;
+            int next = position;
+            for(;;) {
+                next = (next + 1) & mask;
+                if(tableBlocks[next] == 0)
+                    return;
+                int home = hash(tableBlocks[next]) & mask;
+                if(next > position ? home <= position || home > next : home <= position && home > next) {
+                    tableBlocks[position] = tableBlocks[next];
+                    tableSlots[position] = tableSlots[next];
+                    tableBlocks[next] = 0;
+                    position = next;
+                }
+            }
+        }
+        
+        /**
+         * Gets the amount of blocks that were served from the stripe.
+         * @return The amount of hits.
+         */
+        synchronized long getHits() {
+            return hits;
+        }
+        
+        /**
+         * Gets the amount of blocks that were looked up and not in the stripe.
+         * @return The amount of misses.
+         */
+        synchronized long getMisses() {
+            return misses;
+        }
+        
+        /**
+         * Constructs a new {@link Stripe};
+         * @param arena The part of the arena that holds the slots.
+         * @param amountSlots The amount of slots.
+         */
+        Stripe(ByteBuffer arena, int amountSlots) {
+            this.arena = arena;
+            slotBlocks = new int[amountSlots];
+            slotLengths = new int[amountSlots];
+            referenced = new boolean[amountSlots];
+            int tableSize = Integer.highestOneBit(amountSlots) << 2;
+            tableBlocks = new int[tableSize];
+            tableSlots = new int[tableSize];
+            invalidated = new long[tableSize];
+            mask = tableSize - 1;
+        }
+    }
+}